@@ -0,0 +1,145 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark JMH que compara las tres formas de descargar a fichero de
+ * ClientFtpDataService: copia con buffer a un FileOutputStream, transferFrom
+ * del SocketChannel al FileChannel, y escritura sobre ventanas proyectadas en
+ * memoria. Los datos los envía un hilo por una conexión local, como haría el
+ * canal de datos de un servidor; cada operación es una descarga completa.
+ *
+ * @author RoberRey
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DownloadTargetBenchmark {
+
+    @Param({ "67108864", "268435456" })
+    public long size;
+
+    private ServerSocketChannel server;
+    private Thread sender;
+    private Path file;
+    private final Object lock = new Object();
+    private final AtomicBoolean inUse = new AtomicBoolean();
+
+    /**
+     * Tamaño de ventana de la descarga proyectada, que solo afecta a ese caso.
+     */
+    @State(Scope.Benchmark)
+    public static class MappedWindow {
+        @Param({ "8388608", "67108864" })
+        public long window;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        file = Files.createTempFile("ftp-bench", ".bin");
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        sender = new Thread(this::send, "bench-sender");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.close();
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     * Copia con un buffer directo del pool y escritura en el FileOutputStream.
+     */
+    @Benchmark
+    public long stream() throws IOException {
+        ClientFtpDataService service = new ClientFtpDataService(connect(),
+                new FileOutputStream(file.toFile()), true, lock, inUse);
+        return run(service);
+    }
+
+    /**
+     * transferFrom del SocketChannel al FileChannel.
+     */
+    @Benchmark
+    public long transferFrom() throws IOException {
+        FileChannel target = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        return run(new ClientFtpDataService(connect(), target, lock, inUse));
+    }
+
+    /**
+     * Lectura del socket sobre ventanas proyectadas de un fichero ya reservado.
+     */
+    @Benchmark
+    public long mapped(MappedWindow mapped) throws IOException {
+        FileChannel target = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        target.write(ByteBuffer.allocate(1), size - 1);
+        ClientFtpDataService service = new ClientFtpDataService(connect(), target,
+                new FileSegment(0, size), true, lock, inUse);
+        service.setMappedWindow(mapped.window);
+        return run(service);
+    }
+
+    /**
+     * Ejecuta la descarga en el hilo del benchmark con el ajuste de lectura por
+     * defecto de las sesiones.
+     */
+    private long run(ClientFtpDataService service) throws IOException {
+        service.setBufferSizer(new AdaptiveBufferSizer(8 * 1024, DirectBufferPool.LARGE, 0));
+        service.run();
+        return ClientFtpProtocolService.await(service.getResult()).getBytes();
+    }
+
+    private Socket connect() throws IOException {
+        return SocketChannel.open(server.getLocalAddress()).socket();
+    }
+
+    /**
+     * Atiende las conexiones una tras otra enviando size bytes por cada una.
+     */
+    private void send() {
+        ByteBuffer data = ByteBuffer.allocateDirect(DirectBufferPool.LARGE);
+        while (server.isOpen()) {
+            try (SocketChannel channel = server.accept()) {
+                long left = size;
+                while (left > 0) {
+                    data.clear().limit((int) Math.min(data.capacity(), left));
+                    left -= channel.write(data);
+                }
+            } catch (IOException e) {
+                // Conexión cerrada por el cliente o servidor cerrado.
+            }
+        }
+    }
+}
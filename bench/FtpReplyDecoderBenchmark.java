@@ -0,0 +1,119 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmark JMH que compara la lectura de respuestas del canal de control con
+ * BufferedReader.readLine y expresión regular para la 227 (la implementación
+ * anterior del hilo de escucha) con FtpReplyDecoder, sobre la transcripción de
+ * una sesión típica. Con "-prof gc" se ve además la memoria reservada por
+ * operación.
+ *
+ * @author RoberRey
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FtpReplyDecoderBenchmark {
+
+    private static final String TRANSCRIPT = "220-Bienvenido al servidor FTP\r\n"
+            + "220-Uso restringido a usuarios autorizados\r\n"
+            + "220 Servicio preparado\r\n"
+            + "331 Please specify the password.\r\n"
+            + "230 Login successful.\r\n"
+            + "257 \"/pub/datos\" is the current directory\r\n"
+            + "227 Entering Passive Mode (192,168,10,25,195,80).\r\n"
+            + "150 Opening BINARY mode data connection for archivo.bin (104857600 bytes).\r\n"
+            + "226 Transfer complete.\r\n"
+            + "213 104857600\r\n"
+            + "213 20240101120000\r\n"
+            + "250 Directory successfully changed.\r\n";
+
+    // Descarta lo que se escribe en el log sin coste apreciable.
+    private static final OutputStream NULL_LOG = OutputStream.nullOutputStream();
+
+    private byte[] transcript;
+
+    @Setup
+    public void setup() {
+        transcript = TRANSCRIPT.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Implementación anterior: una String por línea, otra String y un byte[] para
+     * el log, y un Pattern compilado en cada 227.
+     */
+    @Benchmark
+    public void readLineAndRegex(Blackhole blackhole) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(transcript)));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            NULL_LOG.write((line + "\n").getBytes());
+            if (line.startsWith("227")) {
+                blackhole.consume(parse227(line));
+            }
+            blackhole.consume(line);
+        }
+    }
+
+    /**
+     * FtpReplyDecoder: el log recibe los bytes del propio buffer y solo se crea
+     * un FtpReply por respuesta.
+     */
+    @Benchmark
+    public void replyDecoder(Blackhole blackhole) throws IOException {
+        FtpReplyDecoder decoder = new FtpReplyDecoder(new FtpReplyDecoder.Listener() {
+            @Override
+            public void onLine(byte[] buffer, int offset, int length) throws IOException {
+                NULL_LOG.write(buffer, offset, length);
+            }
+
+            @Override
+            public void onReply(FtpReply reply) throws IOException {
+                if (reply.getCode() == 227) {
+                    blackhole.consume(FtpReplyDecoder.parsePasv(reply));
+                }
+                blackhole.consume(reply);
+            }
+        });
+        decoder.feed(transcript, 0, transcript.length);
+    }
+
+    /**
+     * Copia del antiguo ClientFtpProtocolService.parse227.
+     */
+    private static InetSocketAddress parse227(String response) throws IOException {
+        Pattern pattern = Pattern.compile(".*\\((\\d+),(\\d+),(\\d+),(\\d+),(\\d+),(\\d+)\\).*");
+        Matcher matcher = pattern.matcher(response);
+        if (matcher.find()) {
+            String ip = matcher.group(1) + "." + matcher.group(2) + "." +
+                    matcher.group(3) + "." + matcher.group(4);
+            int port = Integer.parseInt(matcher.group(5)) * 256 + Integer.parseInt(matcher.group(6));
+            return new InetSocketAddress(ip, port);
+        } else {
+            throw new IOException("Respuesta PASV mal formateada: " + response);
+        }
+    }
+}
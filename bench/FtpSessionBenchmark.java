@@ -0,0 +1,156 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark JMH de sesiones completas de ClientFtpProtocolService contra un
+ * LoopbackFtpServer en el mismo proceso: descargas a un OutputStream y a
+ * fichero, subidas, listados, tiempo de respuesta de un comando y coste de
+ * abrir una sesión. Cada hilo del benchmark usa su propia sesión, así que
+ * ejecutándolo con distintos "-t" se ve cómo escala con el número de
+ * sesiones.
+ *
+ * @author RoberRey
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FtpSessionBenchmark {
+
+    @Param({ "1048576", "67108864" })
+    public long fileSize;
+
+    @Param({ "100" })
+    public int files;
+
+    private LoopbackFtpServer server;
+
+    /**
+     * Sesión iniciada de un hilo del benchmark, con un fichero local para las
+     * descargas y otro para las subidas.
+     */
+    @State(Scope.Thread)
+    public static class Session {
+        private ClientFtpProtocolService session;
+        private Path download;
+        private Path upload;
+
+        @Setup(Level.Trial)
+        public void setup(FtpSessionBenchmark benchmark) throws IOException {
+            session = benchmark.login();
+            download = Files.createTempFile("ftp-bench", ".bin");
+            upload = Files.createTempFile("ftp-bench", ".bin");
+            try (FileChannel file = FileChannel.open(upload, StandardOpenOption.WRITE)) {
+                file.write(ByteBuffer.allocate(1), benchmark.fileSize - 1);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            session.close();
+            Files.deleteIfExists(download);
+            Files.deleteIfExists(upload);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        server = new LoopbackFtpServer(fileSize, files);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    /**
+     * Descarga a un OutputStream, que copia con un buffer directo del pool.
+     */
+    @Benchmark
+    public long retrToStream(Session state) throws IOException {
+        ClientFtpProtocolService session = state.session;
+        session.sendPassv();
+        ClientFtpProtocolService.await(session.sendRetr("file0.bin", OutputStream.nullOutputStream(), false));
+        return ClientFtpProtocolService.await(session.getLastTransfer()).getBytes();
+    }
+
+    /**
+     * Descarga a fichero con transferFrom.
+     */
+    @Benchmark
+    public long retrToFile(Session state) throws IOException {
+        ClientFtpProtocolService session = state.session;
+        session.sendPassv();
+        ClientFtpProtocolService.await(session.sendRetr("file0.bin", state.download));
+        return ClientFtpProtocolService.await(session.getLastTransfer()).getBytes();
+    }
+
+    /**
+     * Subida de un fichero con transferTo.
+     */
+    @Benchmark
+    public long stor(Session state) throws IOException {
+        ClientFtpProtocolService session = state.session;
+        session.sendPassv();
+        ClientFtpProtocolService.await(session.sendStor(state.upload, "subida.bin"));
+        return ClientFtpProtocolService.await(session.getLastTransfer()).getBytes();
+    }
+
+    /**
+     * Listado del directorio sin caché: EPSV, LIST, conexión de datos y
+     * análisis de las líneas.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public DirectoryListing list(Session state) throws IOException {
+        return state.session.listDirectory("/");
+    }
+
+    /**
+     * Ida y vuelta de un comando por el canal de control.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public FtpReply command(Session state) throws IOException {
+        return ClientFtpProtocolService.await(state.session.sendPwd());
+    }
+
+    /**
+     * Conexión, saludo, USER/PASS y cierre de una sesión nueva.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void sessionSetup() throws IOException {
+        login().close();
+    }
+
+    private ClientFtpProtocolService login() throws IOException {
+        ClientFtpProtocolService session = new ClientFtpProtocolService(OutputStream.nullOutputStream());
+        session.connectTo(server.getHost(), server.getPort());
+        ClientFtpProtocolService.await(session.authenticate("bench", "bench"));
+        ClientFtpProtocolService.await(session.sendType("I"));
+        return session;
+    }
+}
@@ -0,0 +1,254 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * La clase LoopbackFtpServer es un servidor FTP mínimo que se ejecuta en el
+ * propio proceso, escuchando en la interfaz local, para medir el cliente sin
+ * depender de un servidor real ni de la red. Sirve un único directorio
+ * virtual con ficheros sintéticos "file0.bin", "file1.bin"... del tamaño
+ * indicado, cuyo contenido se envía desde un buffer directo sin leer de disco;
+ * lo que se sube con STOR se descarta.
+ * Atiende USER, PASS, PWD, CWD, CDUP, TYPE, NOOP, SIZE, EPSV, PASV, LIST, NLST,
+ * RETR, STOR y QUIT; el resto se responde con 502. Cada sesión se atiende en
+ * un hilo virtual.
+ *
+ * @author RoberRey
+ */
+public class LoopbackFtpServer implements Closeable {
+
+    private final long fileSize;
+    private final int files;
+    private final ServerSocketChannel control;
+    private final ByteBuffer content;
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    /**
+     * Crea el servidor y empieza a aceptar conexiones en un puerto libre.
+     *
+     * @param fileSize Tamaño de cada fichero sintético en bytes.
+     * @param files    Número de ficheros del directorio.
+     * @throws IOException Si no se puede abrir el puerto.
+     */
+    public LoopbackFtpServer(long fileSize, int files) throws IOException {
+        this.fileSize = fileSize;
+        this.files = files;
+        this.content = ByteBuffer.allocateDirect(DirectBufferPool.LARGE);
+        control = ServerSocketChannel.open();
+        control.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        Thread acceptor = new Thread(this::accept, "loopback-ftp");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * @return Puerto del canal de control.
+     */
+    public int getPort() {
+        return control.socket().getLocalPort();
+    }
+
+    /**
+     * @return Dirección del servidor.
+     */
+    public String getHost() {
+        return control.socket().getInetAddress().getHostAddress();
+    }
+
+    /**
+     * @return Bytes recibidos con STOR desde que se creó el servidor.
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * Deja de aceptar conexiones. Las sesiones abiertas terminan cuando el
+     * cliente las cierra.
+     */
+    @Override
+    public void close() throws IOException {
+        control.close();
+    }
+
+    private void accept() {
+        while (control.isOpen()) {
+            try {
+                SocketChannel session = control.accept();
+                // Sin Nagle: las respuestas 150 y 226 seguidas no esperan al ACK retardado.
+                session.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Thread.ofVirtual().name("loopback-ftp-session").start(() -> serve(session));
+            } catch (IOException e) {
+                // Servidor cerrado.
+            }
+        }
+    }
+
+    /**
+     * Atiende los comandos de una sesión hasta QUIT o hasta que el cliente
+     * cierra la conexión.
+     */
+    private void serve(SocketChannel session) {
+        ServerSocketChannel passive = null;
+        try (session) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    session.socket().getInputStream(), StandardCharsets.ISO_8859_1));
+            OutputStream out = session.socket().getOutputStream();
+            String directory = "/";
+            reply(out, "220 Servidor local preparado");
+            String line;
+            while ((line = in.readLine()) != null) {
+                int space = line.indexOf(' ');
+                String command = (space < 0 ? line : line.substring(0, space)).toUpperCase();
+                String argument = space < 0 ? "" : line.substring(space + 1);
+                switch (command) {
+                    case "USER" -> reply(out, "331 Contraseña, por favor");
+                    case "PASS" -> reply(out, "230 Sesión iniciada");
+                    case "PWD" -> reply(out, "257 \"" + directory + "\" es el directorio actual");
+                    case "CWD" -> {
+                        directory = ListingCache.resolve(directory, argument);
+                        reply(out, "250 Directorio cambiado");
+                    }
+                    case "CDUP" -> {
+                        directory = ListingCache.parentOf(directory);
+                        reply(out, "250 Directorio cambiado");
+                    }
+                    case "TYPE", "NOOP" -> reply(out, "200 Correcto");
+                    case "SIZE" -> reply(out, exists(argument) ? "213 " + fileSize : "550 No existe");
+                    case "EPSV" -> {
+                        passive = openPassive(passive);
+                        reply(out, "229 Modo pasivo extendido (|||" + passive.socket().getLocalPort() + "|)");
+                    }
+                    case "PASV" -> {
+                        passive = openPassive(passive);
+                        int port = passive.socket().getLocalPort();
+                        reply(out, "227 Modo pasivo (127,0,0,1," + (port >> 8) + "," + (port & 0xFF) + ")");
+                    }
+                    case "RETR" -> {
+                        if (!exists(argument)) {
+                            reply(out, "550 No existe");
+                        } else if (passive == null) {
+                            reply(out, "425 Usa PASV antes");
+                        } else {
+                            reply(out, "150 Abriendo conexión de datos");
+                            sendFile(passive);
+                            passive = closePassive(passive);
+                            reply(out, "226 Transferencia completa");
+                        }
+                    }
+                    case "STOR" -> {
+                        if (passive == null) {
+                            reply(out, "425 Usa PASV antes");
+                        } else {
+                            reply(out, "150 Abriendo conexión de datos");
+                            receiveFile(passive);
+                            passive = closePassive(passive);
+                            reply(out, "226 Transferencia completa");
+                        }
+                    }
+                    case "LIST", "NLST" -> {
+                        if (passive == null) {
+                            reply(out, "425 Usa PASV antes");
+                        } else {
+                            reply(out, "150 Abriendo conexión de datos");
+                            sendListing(passive, command.equals("NLST"));
+                            passive = closePassive(passive);
+                            reply(out, "226 Transferencia completa");
+                        }
+                    }
+                    case "QUIT" -> {
+                        reply(out, "221 Adiós");
+                        return;
+                    }
+                    default -> reply(out, "502 Comando no implementado");
+                }
+            }
+        } catch (IOException e) {
+            // El cliente ha cerrado la sesión.
+        } finally {
+            closePassive(passive);
+        }
+    }
+
+    private static void reply(OutputStream out, String reply) throws IOException {
+        out.write((reply + "\r\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private boolean exists(String name) {
+        String file = name.substring(name.lastIndexOf('/') + 1);
+        if (!file.startsWith("file") || !file.endsWith(".bin")) {
+            return false;
+        }
+        try {
+            int index = Integer.parseInt(file.substring(4, file.length() - 4));
+            return index >= 0 && index < files;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static ServerSocketChannel openPassive(ServerSocketChannel previous) throws IOException {
+        closePassive(previous);
+        ServerSocketChannel passive = ServerSocketChannel.open();
+        passive.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1);
+        return passive;
+    }
+
+    private static ServerSocketChannel closePassive(ServerSocketChannel passive) {
+        if (passive != null) {
+            try {
+                passive.close();
+            } catch (IOException e) {
+            }
+        }
+        return null;
+    }
+
+    private void sendFile(ServerSocketChannel passive) throws IOException {
+        ByteBuffer data = content.duplicate();
+        try (SocketChannel channel = passive.accept()) {
+            long left = fileSize;
+            while (left > 0) {
+                data.clear().limit((int) Math.min(data.capacity(), left));
+                left -= channel.write(data);
+            }
+        }
+    }
+
+    private void receiveFile(ServerSocketChannel passive) throws IOException {
+        ByteBuffer data = ByteBuffer.allocateDirect(DirectBufferPool.SMALL);
+        try (SocketChannel channel = passive.accept()) {
+            int read;
+            while ((read = channel.read(data.clear())) != -1) {
+                bytesReceived.addAndGet(read);
+            }
+        }
+    }
+
+    private void sendListing(ServerSocketChannel passive, boolean namesOnly) throws IOException {
+        StringBuilder listing = new StringBuilder();
+        for (int i = 0; i < files; i++) {
+            if (!namesOnly) {
+                listing.append("-rw-r--r--    1 ftp      ftp      ").append(fileSize).append(" Jan 01 12:00 ");
+            }
+            listing.append("file").append(i).append(".bin\r\n");
+        }
+        try (SocketChannel channel = passive.accept()) {
+            ByteBuffer data = ByteBuffer.wrap(listing.toString().getBytes(StandardCharsets.US_ASCII));
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * La clase AdaptiveBufferSizer ajusta durante una transferencia el tamaño de
+ * cada lectura del canal de datos y el buffer de recepción del socket
+ * (SO_RCVBUF). Se empieza con el tamaño mínimo, que basta para un LIST, y cada
+ * WINDOW lecturas se mira cuánto se ha llenado el buffer: si casi todas las
+ * lecturas lo llenan es que el socket tiene más datos esperando y se duplica;
+ * si apenas se llena se reduce a la mitad.
+ * El buffer de recepción se calcula a partir del rendimiento medido y del RTT
+ * del canal de control (el producto ancho de banda por retardo), para que la
+ * ventana TCP no limite las transferencias en enlaces rápidos o lejanos.
+ * No es seguro entre hilos: cada transferencia usa su propia instancia.
+ *
+ * @author RoberRey
+ */
+public class AdaptiveBufferSizer {
+
+    // Lecturas que se observan antes de cada ajuste.
+    private static final int WINDOW = 8;
+    // Por encima de este llenado medio se duplica el tamaño.
+    private static final double GROW_FILL = 0.9;
+    // Por debajo de este llenado medio se reduce a la mitad.
+    private static final double SHRINK_FILL = 0.25;
+
+    private final int minSize;
+    private final int maxSize;
+    private final long rttNanos;
+    private int size;
+    private int reads;
+    private long windowBytes;
+    private long windowStart = System.nanoTime();
+    private double bytesPerSecond;
+
+    /**
+     * Crea una instancia de AdaptiveBufferSizer.
+     *
+     * @param minSize  Tamaño inicial y mínimo de cada lectura.
+     * @param maxSize  Tamaño máximo de cada lectura.
+     * @param rttNanos RTT medido con el servidor en nanosegundos o 0 si no se
+     *                 conoce.
+     */
+    public AdaptiveBufferSizer(int minSize, int maxSize, long rttNanos) {
+        this.minSize = Math.max(1, minSize);
+        this.maxSize = Math.max(this.minSize, maxSize);
+        this.rttNanos = rttNanos;
+        this.size = this.minSize;
+    }
+
+    /**
+     * @return Tamaño actual de cada lectura.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return Rendimiento medido en la última ventana de lecturas, en bytes por
+     *         segundo, o 0 si aún no se ha completado ninguna.
+     */
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Registra el resultado de una lectura y, al completar una ventana, ajusta
+     * el tamaño.
+     *
+     * @param bytes Bytes obtenidos en la lectura.
+     * @return true si el tamaño ha cambiado.
+     */
+    public boolean onRead(long bytes) {
+        windowBytes += bytes;
+        if (++reads < WINDOW) {
+            return false;
+        }
+        long now = System.nanoTime();
+        if (now > windowStart) {
+            bytesPerSecond = windowBytes * 1_000_000_000.0 / (now - windowStart);
+        }
+        double fill = (double) windowBytes / ((long) reads * size);
+        int previous = size;
+        if (fill > GROW_FILL) {
+            size = (int) Math.min(maxSize, size * 2L);
+        } else if (fill < SHRINK_FILL) {
+            size = Math.max(minSize, size / 2);
+        }
+        reads = 0;
+        windowBytes = 0;
+        windowStart = now;
+        return size != previous;
+    }
+
+    /**
+     * Calcula el buffer de recepción recomendado: el doble del producto del
+     * rendimiento medido por el RTT, y nunca menos de dos lecturas.
+     *
+     * @return Tamaño recomendado para SO_RCVBUF en bytes.
+     */
+    public int getReceiveBufferSize() {
+        double bandwidthDelay = bytesPerSecond * rttNanos / 1_000_000_000.0;
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(2L * size, (long) (2 * bandwidthDelay)));
+    }
+}
@@ -0,0 +1,250 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * La clase AsyncLogSink es un OutputStream para el log de las sesiones que no
+ * escribe en el hilo que lo llama: cada registro se codifica en un byte[] y se
+ * deja en un buffer circular sin bloqueos, y un hilo propio lo vacía por lotes
+ * en el destino real (por ejemplo, System.out o un fichero), con una única
+ * escritura y un flush por lote. Así el hilo de escucha y el que envía los
+ * comandos no esperan a la consola ni al disco.
+ * Si el buffer se llena porque el destino no da abasto, los registros nuevos
+ * se descartan (y se cuentan) o el que escribe espera a que haya hueco, según
+ * se elija al crearlo.
+ * En formato binario cada registro es la fecha en milisegundos desde 1970
+ * (long), el tipo (byte: COMMAND, REPLY o EVENT), la longitud (int) y los
+ * bytes de la línea; en formato texto solo se escriben las líneas.
+ *
+ * @author RoberRey
+ */
+public class AsyncLogSink extends OutputStream {
+
+    /** Comando enviado al servidor. */
+    public static final byte COMMAND = 1;
+    /** Línea de respuesta del servidor. */
+    public static final byte REPLY = 2;
+    /** Cualquier otro mensaje de la sesión. */
+    public static final byte EVENT = 3;
+
+    private static final int BINARY_HEADER = 13;
+    private static final int BATCH_BYTES = 64 * 1024;
+
+    private final OutputStream target;
+    private final boolean blockWhenFull;
+    private final boolean binary;
+    private final AtomicReferenceArray<byte[]> slots;
+    private final int mask;
+    // Siguiente posición a escribir (productores) y a leer (hilo escritor).
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    // Registros ya escritos en el destino y con flush hecho.
+    private volatile long written;
+    private final Thread writer;
+    private volatile boolean writerParked;
+    private volatile boolean closed;
+
+    /**
+     * Crea un log asíncrono en texto con capacidad para 8192 registros, que
+     * descarta los nuevos si se llena.
+     *
+     * @param target Destino real del log; no se cierra al cerrar este.
+     */
+    public AsyncLogSink(OutputStream target) {
+        this(target, 8192, false, false);
+    }
+
+    /**
+     * Crea un log asíncrono.
+     *
+     * @param target        Destino real del log; no se cierra al cerrar este.
+     * @param capacity      Registros pendientes como máximo; se redondea a
+     *                      potencia de 2.
+     * @param blockWhenFull Si es true, al llenarse se espera a que haya hueco; si
+     *                      es false, se descarta el registro.
+     * @param binary        Si es true, los registros se escriben en formato
+     *                      binario con fecha y tipo.
+     */
+    public AsyncLogSink(OutputStream target, int capacity, boolean blockWhenFull, boolean binary) {
+        this.target = target;
+        this.blockWhenFull = blockWhenFull;
+        this.binary = binary;
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.writer = new Thread(this::drain, "ftp-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Encola un registro. No bloquea salvo que el buffer esté lleno y se haya
+     * elegido esperar.
+     *
+     * @param kind   Tipo del registro: COMMAND, REPLY o EVENT.
+     * @param bytes  Bytes de la línea.
+     * @param offset Posición del primer byte.
+     * @param length Número de bytes.
+     * @throws IOException Si el log está cerrado o se interrumpe la espera.
+     */
+    public void record(byte kind, byte[] bytes, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException("Log cerrado");
+        }
+        byte[] encoded;
+        if (binary) {
+            encoded = new byte[BINARY_HEADER + length];
+            ByteBuffer.wrap(encoded).putLong(System.currentTimeMillis()).put(kind).putInt(length)
+                    .put(bytes, offset, length);
+        } else {
+            encoded = new byte[length];
+            System.arraycopy(bytes, offset, encoded, 0, length);
+        }
+        long position;
+        while (true) {
+            position = tail.get();
+            if (position - head.get() > mask) {
+                if (!blockWhenFull) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                waitForSpace();
+            } else if (tail.compareAndSet(position, position + 1)) {
+                break;
+            }
+        }
+        slots.set((int) position & mask, encoded);
+        if (writerParked) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private void waitForSpace() throws IOException {
+        LockSupport.unpark(writer);
+        LockSupport.parkNanos(50_000);
+        if (Thread.currentThread().isInterrupted()) {
+            throw new IOException("Interrumpido esperando hueco en el log");
+        }
+        if (closed) {
+            throw new IOException("Log cerrado");
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        record(EVENT, b, off, len);
+    }
+
+    /**
+     * Espera a que se hayan escrito en el destino todos los registros encolados
+     * hasta ahora.
+     */
+    @Override
+    public void flush() throws IOException {
+        long wanted = tail.get();
+        while (written < wanted && writer.isAlive()) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(100_000);
+            if (Thread.currentThread().isInterrupted()) {
+                throw new IOException("Interrumpido esperando a vaciar el log");
+            }
+        }
+    }
+
+    /**
+     * Deja de aceptar registros, escribe los pendientes y termina el hilo
+     * escritor. El destino no se cierra.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrumpido cerrando el log", e);
+        }
+    }
+
+    /**
+     * @return Registros descartados por tener el buffer lleno.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return Registros encolados que aún no se han escrito.
+     */
+    public long getPending() {
+        return tail.get() - head.get();
+    }
+
+    /**
+     * Bucle del hilo escritor: junta los registros disponibles en un lote, lo
+     * escribe de una vez y hace flush cuando la cola queda vacía.
+     */
+    private void drain() {
+        byte[] batch = new byte[BATCH_BYTES];
+        int batchLength = 0;
+        while (true) {
+            long position = head.get();
+            byte[] record = slots.get((int) position & mask);
+            if (record != null) {
+                slots.set((int) position & mask, null);
+                head.set(position + 1);
+                if (batchLength + record.length > batch.length) {
+                    batchLength = writeBatch(batch, batchLength);
+                }
+                if (record.length > batch.length) {
+                    writeBatch(record, record.length);
+                } else {
+                    System.arraycopy(record, 0, batch, batchLength, record.length);
+                    batchLength += record.length;
+                }
+                continue;
+            }
+            if (batchLength > 0) {
+                batchLength = writeBatch(batch, batchLength);
+                try {
+                    target.flush();
+                } catch (IOException e) {
+                    // Igual que en writeBatch: sin destino no hay dónde avisar.
+                }
+                written = position;
+                continue;
+            }
+            // Cola vacía: solo se termina si está cerrado y ningún productor tiene una posición reservada.
+            written = position;
+            if (closed && tail.get() == position) {
+                return;
+            }
+            writerParked = true;
+            if (tail.get() == position && !closed) {
+                LockSupport.parkNanos(10_000_000);
+            } else {
+                Thread.onSpinWait();
+            }
+            writerParked = false;
+        }
+    }
+
+    private int writeBatch(byte[] batch, int length) {
+        try {
+            target.write(batch, 0, length);
+        } catch (IOException e) {
+            // Sin destino no hay dónde avisar; los registros se pierden.
+        }
+        return 0;
+    }
+}
@@ -1,30 +1,92 @@
+import java.io.EOFException;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 /**
  * La clase ClientFtpDataService se encarga de gestionar el canal de datos del
  * FTP.
  * Implementa Runnable para poder ejecutar la transferencia en un hilo
  * independiente.
- * Realiza la copia de datos entre el InputStream del socket de datos y el
- * OutputStream
- * indicado (por ejemplo, un FileOutputStream o System.out). Al finalizar,
+ * Realiza la copia de datos entre el socket de datos y el OutputStream
+ * indicado (por ejemplo, un FileOutputStream o System.out) a través de un
+ * ByteBuffer directo prestado por DirectBufferPool. Al finalizar,
  * cierra el socket
  * y, si es necesario, el OutputStream, y libera el bloqueo que impide
  * transferencias concurrentes.
- * 
+ * Cuando el destino es un fichero, los datos se vuelcan directamente desde el
+ * SocketChannel al FileChannel con transferFrom, sin pasar por un buffer en el
+ * heap. En las subidas se hace lo contrario: el fichero se envía al socket con
+ * transferTo, que el sistema resuelve con sendfile; si el socket no tiene
+ * SocketChannel se copia con un buffer directo del pool.
+ * Si se le asigna un AdaptiveBufferSizer, el tamaño de cada lectura y el
+ * SO_RCVBUF del socket se ajustan durante la descarga según lo que se va
+ * recibiendo.
+ * Para ficheros grandes se puede descargar sobre una ventana del fichero
+ * proyectada en memoria (MappedByteBuffer) que se desplaza según llegan los
+ * datos: cada lectura del socket escribe directamente en la caché de páginas,
+ * sin una llamada write por bloque.
+ * Si se le asigna un flujo de TrafficShaper, cada bloque se limita al tamaño
+ * que este recomienda y, tras transferirlo, se descuenta del cubo de fichas,
+ * esperando si se va por delante del límite de ancho de banda.
+ * Si se le asigna un StreamingDigest, las descargas calculan el resumen de
+ * los datos a medida que llegan y lo dejan en las TransferStats. Como
+ * transferFrom no deja ver los bytes, la descarga en fichero sin proyectar se
+ * hace entonces con un buffer directo del pool.
+ * Si se le asigna un Inflater, la descarga llega comprimida (MODE Z) y se
+ * descomprime por bloques según se lee del socket, también con buffers
+ * directos del pool; la limitación de ancho de banda y el primer byte se
+ * cuentan sobre los bytes comprimidos, que son los que ocupan la red.
+ *
  * @author RoberRey
  */
 public class ClientFtpDataService implements Runnable {
 
+    // Máximo de bytes solicitados en cada llamada a transferFrom.
+    private static final long TRANSFER_CHUNK = 1L << 20;
+
     private Socket dataSocket;
     private OutputStream out;
     private boolean closeOutput;
+    private FileChannel target;
+    private FileSegment segment;
+    private boolean closeTarget;
+    private FileChannel source;
+    private long sourcePosition;
+    private boolean closeSource;
     private final Object dataChannelLock;
     private final AtomicBoolean dataChannelInUse;
+    private final DirectBufferPool bufferPool = DirectBufferPool.shared();
+    private AdaptiveBufferSizer sizer;
+    // Tamaño de la ventana proyectada en memoria o 0 para no proyectar.
+    private long mappedWindow;
+    // Limitación de ancho de banda, o null para transferir sin límite.
+    private TrafficShaper.Flow flow;
+    // Resumen de los datos descargados, o null para no calcularlo.
+    private StreamingDigest digest;
+    // Descompresión de MODE Z, o null si los datos llegan sin comprimir.
+    private Inflater inflater;
+    private ByteBuffer compressed;
+    private long compressedBytes;
+    // Inicio de la transferencia y llegada del primer byte, o -1 si no ha llegado.
+    private long start;
+    private long firstByte = -1;
+    // Se completa con las estadísticas al terminar la transferencia.
+    private final CompletableFuture<TransferStats> result = new CompletableFuture<>();
 
     /**
      * Crea una instancia de ClientFtpDataService.
@@ -47,23 +109,200 @@ public class ClientFtpDataService implements Runnable {
     }
 
     /**
-     * Ejecuta la transferencia de datos copiando bytes desde el InputStream del
-     * socket
-     * hacia el OutputStream indicado. Al finalizar, cierra los recursos y libera el
-     * bloqueo.
+     * Crea una instancia de ClientFtpDataService que descarga directamente en un
+     * fichero. El FileChannel se cierra siempre al finalizar la transferencia.
+     *
+     * @param dataSocket       Socket del canal de datos ya conectado, creado a
+     *                         partir de un SocketChannel.
+     * @param target           FileChannel abierto para escritura donde se
+     *                         volcarán los datos.
+     * @param dataChannelLock  Objeto de bloqueo utilizado para sincronizar el canal
+     *                         de datos.
+     * @param dataChannelInUse Indicador de uso del canal de datos.
+     */
+    public ClientFtpDataService(Socket dataSocket, FileChannel target,
+            Object dataChannelLock, AtomicBoolean dataChannelInUse) {
+        this(dataSocket, target, new FileSegment(0, Long.MAX_VALUE), true,
+                dataChannelLock, dataChannelInUse);
+    }
+
+    /**
+     * Crea una instancia de ClientFtpDataService que descarga un rango del
+     * fichero. Los datos recibidos se escriben a partir de la posición actual
+     * del segmento y la transferencia se corta al alcanzar su final, aunque el
+     * servidor siga enviando.
+     *
+     * @param dataSocket       Socket del canal de datos ya conectado, creado a
+     *                         partir de un SocketChannel.
+     * @param target           FileChannel abierto para escritura.
+     * @param segment          Rango del fichero que cubre esta transferencia.
+     * @param closeTarget      Si es true, se cerrará el FileChannel al finalizar.
+     * @param dataChannelLock  Objeto de bloqueo utilizado para sincronizar el canal
+     *                         de datos.
+     * @param dataChannelInUse Indicador de uso del canal de datos.
+     */
+    public ClientFtpDataService(Socket dataSocket, FileChannel target, FileSegment segment,
+            boolean closeTarget, Object dataChannelLock, AtomicBoolean dataChannelInUse) {
+        this.dataSocket = dataSocket;
+        this.target = target;
+        this.segment = segment;
+        this.closeTarget = closeTarget;
+        this.dataChannelLock = dataChannelLock;
+        this.dataChannelInUse = dataChannelInUse;
+    }
+
+    /**
+     * Crea una instancia de ClientFtpDataService que sube un fichero por el canal
+     * de datos desde la posición indicada hasta su final.
+     *
+     * @param dataSocket       Socket del canal de datos ya conectado.
+     * @param source           FileChannel abierto para lectura con los datos a
+     *                         enviar.
+     * @param position         Posición del fichero desde la que se envía.
+     * @param closeSource      Si es true, se cerrará el FileChannel al finalizar.
+     * @param dataChannelLock  Objeto de bloqueo utilizado para sincronizar el canal
+     *                         de datos.
+     * @param dataChannelInUse Indicador de uso del canal de datos.
+     */
+    public ClientFtpDataService(Socket dataSocket, FileChannel source, long position,
+            boolean closeSource, Object dataChannelLock, AtomicBoolean dataChannelInUse) {
+        this.dataSocket = dataSocket;
+        this.source = source;
+        this.sourcePosition = position;
+        this.closeSource = closeSource;
+        this.dataChannelLock = dataChannelLock;
+        this.dataChannelInUse = dataChannelInUse;
+    }
+
+    /**
+     * Asigna el ajuste adaptativo del tamaño de lectura. Sin él, las descargas
+     * leen en bloques fijos. Debe llamarse antes de lanzar la transferencia.
+     *
+     * @param sizer Ajuste a aplicar a esta transferencia.
+     */
+    public void setBufferSizer(AdaptiveBufferSizer sizer) {
+        this.sizer = sizer;
+    }
+
+    /**
+     * Limita el ancho de banda de la transferencia. Debe llamarse antes de
+     * lanzarla.
+     *
+     * @param flow Flujo del TrafficShaper por el que pasa cada bloque.
+     */
+    public void setTrafficFlow(TrafficShaper.Flow flow) {
+        this.flow = flow;
+    }
+
+    /**
+     * Calcula un resumen de los datos descargados mientras se copian. Solo
+     * cubre los bytes de esta transferencia, no el resto del fichero si es un
+     * segmento. Debe llamarse antes de lanzar la transferencia.
+     *
+     * @param digest Resumen vacío, por ejemplo StreamingDigest.of("CRC32C").
+     */
+    public void setDigest(StreamingDigest digest) {
+        this.digest = digest;
+    }
+
+    /**
+     * Indica que la descarga llega comprimida en MODE Z y debe descomprimirse
+     * con el Inflater dado, que se reinicia antes de empezar y no se libera al
+     * terminar, para reutilizarlo en la siguiente descarga. No admite
+     * descargas proyectadas en memoria. Debe llamarse antes de lanzar la
+     * transferencia.
+     *
+     * @param inflater Inflater en formato zlib, o null si no hay compresión.
+     */
+    public void setInflater(Inflater inflater) {
+        this.inflater = inflater;
+    }
+
+    /**
+     * Hace que la descarga en fichero escriba sobre ventanas del fichero
+     * proyectadas en memoria en lugar de usar transferFrom. Solo se aplica si el
+     * segmento tiene un final conocido, que normalmente se obtiene con SIZE. El
+     * FileChannel debe estar abierto para lectura y escritura. Debe llamarse
+     * antes de lanzar la transferencia.
+     *
+     * @param windowSize Tamaño de cada ventana en bytes; como máximo
+     *                   Integer.MAX_VALUE.
+     */
+    public void setMappedWindow(long windowSize) {
+        // FileChannel.map no admite regiones de más de Integer.MAX_VALUE bytes.
+        this.mappedWindow = Math.max(0, Math.min(Integer.MAX_VALUE, windowSize));
+    }
+
+    /**
+     * Devuelve el resultado de la transferencia, que se completa con sus
+     * estadísticas al finalizar o de forma excepcional si falla.
+     *
+     * @return Future con las estadísticas de la transferencia.
+     */
+    public CompletableFuture<TransferStats> getResult() {
+        return result;
+    }
+
+    /**
+     * @return true si la transferencia es una subida.
+     */
+    public boolean isUpload() {
+        return source != null;
+    }
+
+    /**
+     * Ejecuta la transferencia de datos copiando bytes desde el socket hacia el
+     * destino indicado, o desde el fichero hacia el socket en las subidas. Al
+     * finalizar, cierra los recursos y libera el bloqueo; en las subidas el
+     * cierre del socket es lo que indica al servidor el final del fichero.
+     * Si falla, con cualquier excepción, el error queda en el resultado.
      */
     @Override
     public void run() {
-        try (InputStream in = dataSocket.getInputStream()) {
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            while ((bytesRead = in.read(buffer)) != -1) {
-                out.write(buffer, 0, bytesRead);
+        start = System.nanoTime();
+        try {
+            long bytes;
+            if (inflater != null) {
+                inflater.reset();
+                compressed = bufferPool.acquire(DirectBufferPool.SMALL);
             }
-            out.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+            if (source != null) {
+                bytes = transferFromFile();
+            } else if (isMapped()) {
+                bytes = transferToMappedFile();
+            } else if (target != null && (digest != null || inflater != null)) {
+                bytes = copyToFile();
+            } else if (target != null) {
+                bytes = transferToFile();
+            } else {
+                bytes = copyToStream();
+            }
+            int bufferSize = 0;
+            if (isMapped()) {
+                bufferSize = (int) Math.min(Integer.MAX_VALUE, mappedWindow);
+            } else if (sizer != null && source == null) {
+                bufferSize = sizer.getSize();
+            }
+            long nanos = System.nanoTime() - start;
+            long firstByteNanos = firstByte < 0 ? -1 : firstByte - start;
+            TransferStats stats = new TransferStats(bytes, nanos)
+                    .withBufferSize(bufferSize)
+                    .withFirstByteNanos(firstByteNanos);
+            if (source == null && digest != null) {
+                stats = stats.withDigest(digest.getAlgorithm(), digest.finish());
+            }
+            if (source == null && inflater != null) {
+                stats = stats.withCompressedBytes(compressedBytes);
+            }
+            result.complete(stats);
+        } catch (IOException | RuntimeException e) {
+            // Cualquier fallo debe completar el resultado: close() y quien espera la transferencia dependen de él.
+            result.completeExceptionally(e);
         } finally {
+            if (compressed != null) {
+                bufferPool.release(compressed);
+                compressed = null;
+            }
             try {
                 dataSocket.close();
             } catch (IOException e) {
@@ -74,10 +313,382 @@ public class ClientFtpDataService implements Runnable {
                 } catch (IOException e) {
                 }
             }
+            if (closeTarget) {
+                try {
+                    target.close();
+                } catch (IOException e) {
+                }
+            }
+            if (closeSource) {
+                try {
+                    source.close();
+                } catch (IOException e) {
+                }
+            }
             synchronized (dataChannelLock) {
                 dataChannelInUse.set(false);
                 dataChannelLock.notifyAll();
             }
         }
     }
+
+    /**
+     * Copia los datos del socket al OutputStream usando un buffer directo del
+     * pool. Si el OutputStream es un FileOutputStream se escribe en su
+     * FileChannel, de modo que los datos no pasan por el heap. Si el tamaño de
+     * lectura crece por encima del buffer prestado, se cambia por uno mayor.
+     *
+     * @return Número de bytes copiados.
+     * @throws IOException Si ocurre un error de lectura o escritura.
+     */
+    private long copyToStream() throws IOException {
+        long total = 0;
+        ReadableByteChannel in = dataSocket.getChannel() != null
+                ? dataSocket.getChannel() : Channels.newChannel(dataSocket.getInputStream());
+        WritableByteChannel sink = out instanceof FileOutputStream file
+                ? file.getChannel() : Channels.newChannel(out);
+        ByteBuffer buffer = bufferPool.acquire(sizer != null ? sizer.getSize() : DirectBufferPool.SMALL);
+        try {
+            int bytesRead;
+            limitRead(buffer);
+            while ((bytesRead = read(in, buffer)) != -1) {
+                buffer.flip();
+                if (digest != null) {
+                    digest.update(buffer);
+                }
+                while (buffer.hasRemaining()) {
+                    total += sink.write(buffer);
+                }
+                buffer.clear();
+                if (adapt(bytesRead) && sizer.getSize() > buffer.capacity()) {
+                    bufferPool.release(buffer);
+                    buffer = bufferPool.acquire(sizer.getSize());
+                }
+                limitRead(buffer);
+            }
+            out.flush();
+        } finally {
+            bufferPool.release(buffer);
+        }
+        return total;
+    }
+
+    /**
+     * Vuelca los datos del SocketChannel al FileChannel mediante transferFrom,
+     * escribiendo en la posición del segmento, hasta que el servidor cierra el
+     * canal de datos o se alcanza el final del segmento.
+     *
+     * @return Número de bytes escritos en el fichero.
+     * @throws IOException Si el socket no tiene canal asociado o falla la
+     *                     transferencia.
+     */
+    private long transferToFile() throws IOException {
+        SocketChannel source = dataSocket.getChannel();
+        if (source == null) {
+            throw new IOException("El socket de datos no tiene un SocketChannel asociado.");
+        }
+        long total = 0;
+        long position = segment.getPosition();
+        long count;
+        // El final se vuelve a leer en cada vuelta porque otra sesión puede acortarlo.
+        while ((count = Math.min(chunkSize(sizer != null ? sizer.getSize() : TRANSFER_CHUNK),
+                segment.getEnd() - position)) > 0) {
+            long transferred = target.transferFrom(source, position, count);
+            if (transferred <= 0) {
+                break;
+            }
+            markFirstByte(transferred);
+            throttle(transferred);
+            position += transferred;
+            total += transferred;
+            segment.advance(transferred);
+            adapt(transferred);
+        }
+        return total;
+    }
+
+    /**
+     * Copia los datos del socket al FileChannel con un buffer directo del pool,
+     * escribiendo en la posición del segmento hasta que el servidor cierra el
+     * canal de datos o se alcanza su final. Se usa en lugar de transferFrom
+     * cuando hay que calcular el resumen de los datos o descomprimirlos.
+     *
+     * @return Número de bytes escritos en el fichero.
+     * @throws IOException Si ocurre un error de lectura o escritura.
+     */
+    private long copyToFile() throws IOException {
+        ReadableByteChannel in = dataSocket.getChannel() != null
+                ? dataSocket.getChannel() : Channels.newChannel(dataSocket.getInputStream());
+        long total = 0;
+        long position = segment.getPosition();
+        ByteBuffer buffer = bufferPool.acquire(sizer != null ? sizer.getSize() : DirectBufferPool.SMALL);
+        try {
+            long allowed;
+            while ((allowed = segment.getEnd() - position) > 0) {
+                limitRead(buffer);
+                if (allowed < buffer.limit()) {
+                    buffer.limit((int) allowed);
+                }
+                int bytesRead = read(in, buffer);
+                if (bytesRead == -1) {
+                    break;
+                }
+                buffer.flip();
+                if (digest != null) {
+                    digest.update(buffer);
+                }
+                while (buffer.hasRemaining()) {
+                    position += target.write(buffer, position);
+                }
+                total += bytesRead;
+                segment.advance(bytesRead);
+                buffer.clear();
+                if (adapt(bytesRead) && sizer.getSize() > buffer.capacity()) {
+                    bufferPool.release(buffer);
+                    buffer = bufferPool.acquire(sizer.getSize());
+                }
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+        return total;
+    }
+
+    /**
+     * Lee del SocketChannel directamente sobre ventanas del fichero proyectadas
+     * en memoria, desde la posición del segmento hasta su final. Cada ventana se
+     * proyecta cuando se ha llenado la anterior; las ya escritas las libera el
+     * recolector, porque Java no permite desproyectarlas de forma explícita.
+     * Si el servidor cierra antes del final y el fichero es solo de esta
+     * descarga, se recorta a lo recibido.
+     *
+     * @return Número de bytes escritos en el fichero.
+     * @throws IOException Si el socket no tiene canal asociado o falla la
+     *                     transferencia.
+     */
+    private long transferToMappedFile() throws IOException {
+        SocketChannel source = dataSocket.getChannel();
+        if (source == null) {
+            throw new IOException("El socket de datos no tiene un SocketChannel asociado.");
+        }
+        long total = 0;
+        long position = segment.getPosition();
+        boolean endOfStream = false;
+        while (!endOfStream && position < segment.getEnd()) {
+            long windowSize = Math.min(mappedWindow, segment.getEnd() - position);
+            MappedByteBuffer window = target.map(FileChannel.MapMode.READ_WRITE, position, windowSize);
+            while (window.hasRemaining()) {
+                // Otra sesión puede acortar el segmento mientras se llena la ventana.
+                int allowed = (int) Math.min(chunkSize(window.remaining()), segment.getEnd() - position);
+                if (allowed <= 0) {
+                    break;
+                }
+                int offset = window.position();
+                window.limit(offset + allowed);
+                int read = source.read(window);
+                if (read == -1) {
+                    endOfStream = true;
+                    break;
+                }
+                if (digest != null) {
+                    digest.update(window.slice(offset, read));
+                }
+                markFirstByte(read);
+                throttle(read);
+                position += read;
+                total += read;
+                segment.advance(read);
+            }
+        }
+        if (endOfStream && closeTarget && position < target.size()) {
+            target.truncate(position);
+        }
+        return total;
+    }
+
+    /**
+     * @return true si la descarga se escribe sobre ventanas proyectadas en
+     *         memoria.
+     */
+    private boolean isMapped() {
+        return target != null && mappedWindow > 0 && segment.getEnd() != Long.MAX_VALUE && inflater == null;
+    }
+
+    /**
+     * Lee del canal de datos sobre el buffer, descomprimiendo si la descarga
+     * está en MODE Z, y descuenta lo recibido del TrafficShaper.
+     *
+     * @return Bytes de datos ya descomprimidos añadidos al buffer, o -1 al
+     *         final de la transferencia.
+     * @throws IOException Si falla la lectura o los datos comprimidos no son
+     *                     válidos.
+     */
+    private int read(ReadableByteChannel in, ByteBuffer buffer) throws IOException {
+        if (inflater == null) {
+            int read = in.read(buffer);
+            markFirstByte(read);
+            throttle(read);
+            return read;
+        }
+        int start = buffer.position();
+        try {
+            // Un bloque comprimido puede no dar ningún byte: se sigue leyendo hasta tener alguno.
+            while (buffer.position() == start && buffer.hasRemaining()) {
+                if (inflater.finished()) {
+                    return -1;
+                }
+                if (inflater.needsInput()) {
+                    compressed.clear().limit((int) chunkSize(compressed.capacity()));
+                    int read = in.read(compressed);
+                    if (read == -1) {
+                        if (inflater.getBytesRead() == 0) {
+                            // El servidor no ha enviado nada: fichero vacío.
+                            return -1;
+                        }
+                        throw new EOFException("Datos comprimidos incompletos");
+                    }
+                    markFirstByte(read);
+                    throttle(read);
+                    compressedBytes += read;
+                    inflater.setInput(compressed.flip());
+                }
+                inflater.inflate(buffer);
+                if (inflater.needsDictionary()) {
+                    throw new IOException("Los datos comprimidos piden un diccionario");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Datos comprimidos no válidos: " + e.getMessage(), e);
+        }
+        return buffer.position() - start;
+    }
+
+    /**
+     * Anota el momento en que llegan los primeros bytes de una descarga. Con
+     * transferFrom es cuando vuelve la primera llamada, que puede haber esperado
+     * a recibir un bloque entero.
+     */
+    private void markFirstByte(long bytes) {
+        if (firstByte < 0 && bytes > 0) {
+            firstByte = System.nanoTime();
+        }
+    }
+
+    /**
+     * Limita el buffer al tamaño de lectura actual y al bloque del
+     * TrafficShaper.
+     */
+    private void limitRead(ByteBuffer buffer) {
+        buffer.limit((int) chunkSize(sizer != null ? Math.min(sizer.getSize(), buffer.capacity())
+                : buffer.capacity()));
+    }
+
+    /**
+     * Recorta un tamaño de bloque al que recomienda el TrafficShaper, si lo hay.
+     */
+    private long chunkSize(long size) {
+        return flow != null ? Math.min(size, flow.getChunkSize()) : size;
+    }
+
+    /**
+     * Descuenta un bloque transferido del TrafficShaper, esperando si hace falta.
+     *
+     * @throws InterruptedIOException Si se interrumpe la espera.
+     */
+    private void throttle(long bytes) throws InterruptedIOException {
+        if (flow == null) {
+            return;
+        }
+        try {
+            flow.acquire(bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Transferencia interrumpida");
+        }
+    }
+
+    /**
+     * Pasa una lectura al ajuste adaptativo y, si cambia el tamaño, amplía el
+     * SO_RCVBUF cuando el recomendado supera al actual. Nunca se reduce, para
+     * no recortar la ventana TCP ya anunciada.
+     *
+     * @param bytes Bytes obtenidos en la lectura.
+     * @return true si ha cambiado el tamaño de lectura.
+     */
+    private boolean adapt(long bytes) {
+        if (sizer == null || !sizer.onRead(bytes)) {
+            return false;
+        }
+        SocketChannel channel = dataSocket.getChannel();
+        if (channel != null) {
+            try {
+                int wanted = sizer.getReceiveBufferSize();
+                if (wanted > channel.getOption(StandardSocketOptions.SO_RCVBUF)) {
+                    channel.setOption(StandardSocketOptions.SO_RCVBUF, wanted);
+                }
+            } catch (IOException e) {
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Envía el fichero al SocketChannel mediante transferTo desde la posición
+     * inicial hasta su final. Si el socket no tiene canal asociado, o transferTo
+     * deja de avanzar, el resto se copia con un buffer del pool.
+     *
+     * @return Número de bytes enviados.
+     * @throws IOException Si falla la lectura del fichero o el envío.
+     */
+    private long transferFromFile() throws IOException {
+        SocketChannel sink = dataSocket.getChannel();
+        long position = sourcePosition;
+        long size = source.size();
+        if (sink != null) {
+            while (position < size) {
+                long transferred = source.transferTo(position,
+                        Math.min(chunkSize(TRANSFER_CHUNK), size - position), sink);
+                if (transferred <= 0) {
+                    break;
+                }
+                throttle(transferred);
+                position += transferred;
+            }
+        }
+        if (position < size) {
+            position += copyFromFile(position);
+        }
+        return position - sourcePosition;
+    }
+
+    /**
+     * Copia el fichero desde la posición indicada al OutputStream del socket
+     * usando un buffer directo del pool.
+     *
+     * @param position Posición del fichero desde la que se copia.
+     * @return Número de bytes copiados.
+     * @throws IOException Si ocurre un error de lectura o escritura.
+     */
+    private long copyFromFile(long position) throws IOException {
+        long total = 0;
+        OutputStream stream = dataSocket.getOutputStream();
+        WritableByteChannel sink = Channels.newChannel(stream);
+        ByteBuffer buffer = bufferPool.acquire(DirectBufferPool.SMALL);
+        try {
+            buffer.limit((int) chunkSize(buffer.capacity()));
+            int read;
+            while ((read = source.read(buffer, position + total)) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    total += sink.write(buffer);
+                }
+                throttle(read);
+                buffer.clear().limit((int) chunkSize(buffer.capacity()));
+            }
+            stream.flush();
+        } finally {
+            bufferPool.release(buffer);
+        }
+        return total;
+    }
 }
@@ -1,36 +1,128 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Inflater;
 
 /**
  * Esta clase gestiona el canal de control del protocolo FTP.
  * Permite conectarse a un servidor FTP, enviar comandos (USER, PASS, QUIT, PWD,
  * CWD, CDUP, PASV, LIST y RETR)
- * y recibir respuestas de forma asíncrona. Para comandos que involucran el
- * canal de datos (LIST y RETR),
- * se utiliza una sincronización para esperar la respuesta del comando PASV.
+ * y recibir respuestas de forma asíncrona. Cada comando devuelve un
+ * CompletableFuture que se completa con su respuesta final: como el servidor
+ * responde en el mismo orden en que recibe los comandos, los futures pendientes
+ * se guardan en una cola FIFO y cada respuesta completa el primero de ella.
+ * Para comandos que involucran el canal de datos (LIST y RETR), se espera la
+ * respuesta del comando PASV antes de conectar.
+ * Las respuestas se leen con un hilo de escucha propio o, si la sesión se
+ * conecta a través de un FtpReactor, desde el hilo compartido del reactor.
+ * Si el log es un AsyncLogSink, comandos y respuestas se encolan con su tipo y
+ * se escriben desde otro hilo, sin que la consola o el disco frenen el canal
+ * de control.
+ * Las descargas pueden calcular un resumen de los datos según llegan y
+ * compararlo con el que calcula el servidor con HASH, XCRC, XSHA256, XSHA1 o
+ * XMD5, sin volver a leer el fichero descargado.
+ * Las descargas y los listados pueden pedirse comprimidos con MODE Z, si se
+ * activa para el servidor o si este lo anuncia en FEAT; los datos se
+ * descomprimen según llegan con un Inflater que la sesión reutiliza en todas
+ * sus transferencias. Las subidas y las descargas por segmentos van siempre
+ * sin comprimir, en MODE S.
  * 
  * @author RoberRey
  */
 public class ClientFtpProtocolService implements Runnable {
 
+    /** No se usa MODE Z. */
+    public static final int COMPRESSION_OFF = 0;
+    /** Se usa MODE Z si el servidor lo anuncia en FEAT. */
+    public static final int COMPRESSION_AUTO = 1;
+    /** Se pide MODE Z aunque el servidor no lo anuncie. */
+    public static final int COMPRESSION_ON = 2;
+
     private Socket controlSocket;
-    private BufferedReader controlReader;
+    private InputStream controlInput;
     private PrintWriter controlWriter;
     private OutputStream log;
-    private Thread controlThread;
+    // Ejecuta el hilo de escucha del canal de control y las transferencias.
+    private final TransferExecutor executor;
+    // Reactor compartido y conexión registrada, si la sesión no usa hilo propio.
+    private FtpReactor reactor;
+    private FtpReactor.Connection reactorConnection;
+    // Se libera cuando el canal de control queda cerrado.
+    private final CountDownLatch controlClosed = new CountDownLatch(1);
 
-    // Sincronización para el comando PASV.
-    private CountDownLatch pasvLatch;
-    // Socket para el canal de datos, asignado al recibir la respuesta 227.
+    // Respuestas pendientes, en el mismo orden en que se enviaron los comandos.
+    private final Queue<CompletableFuture<FtpReply>> pendingReplies = new ConcurrentLinkedQueue<>();
+    // Garantiza que el orden de la cola coincide con el de envío.
+    private final Object commandLock = new Object();
+    // Indica que ya no llegarán más respuestas por el canal de control.
+    private volatile boolean controlClosedFlag;
+    // Error que cerró el canal de control, o null si se cerró de forma ordenada.
+    private volatile IOException controlFailure;
+    // Máximo de comandos enviados sin respuesta en pipeline().
+    private volatile int pipelineWindow = 32;
+    // Decodifica las respuestas a partir de los bytes del canal de control.
+    private final FtpReplyDecoder replyDecoder;
+    // Socket para el canal de datos, conectado tras recibir la respuesta 227.
     private Socket dataSocket;
     // Bloqueo para evitar el uso concurrente del canal de datos.
     private final Object dataChannelLock = new Object();
     // Con esto permitimos que el hilo gestione varios booleanos uno detrás de otro
     private final AtomicBoolean dataChannelInUse = new AtomicBoolean(false);
+    // Pasa a false si el servidor no reconoce EPSV, para usar PASV directamente.
+    private volatile boolean epsvSupported = true;
+    // Resultado de la última transferencia lanzada por el canal de datos.
+    private volatile CompletableFuture<TransferStats> lastTransfer;
+    // Límites del tamaño de lectura adaptativo de las descargas.
+    private volatile int minReadSize = 8 * 1024;
+    private volatile int maxReadSize = DirectBufferPool.LARGE;
+    // Descargas a partir de este tamaño se proyectan en memoria; 0 lo desactiva.
+    private volatile long mappedThreshold;
+    private volatile long mappedWindow = 64L * 1024 * 1024;
+    // Extensiones anunciadas por FEAT, o null si aún no se han pedido.
+    private volatile Map<String, String> features;
+    // Caché de listados del servidor, o null para no usarla.
+    private volatile ListingCache listingCache;
+    // Directorio de trabajo según el último PWD o CWD, o null si no se conoce.
+    private volatile String workingDirectory;
+    // Último TYPE aceptado por el servidor, o null si no se ha enviado ninguno.
+    private volatile String transferType;
+    // Cuenta los CWD y CDUP enviados, para no dar por bueno el destino de uno antiguo.
+    private final AtomicInteger directoryChanges = new AtomicInteger();
+    // RTT del canal de control medido con EPSV/PASV, en nanosegundos.
+    private volatile long controlRttNanos;
+    // Limitación de ancho de banda y clase de prioridad de las transferencias.
+    private volatile TrafficShaper trafficShaper;
+    private volatile int transferPriority = TrafficShaper.NORMAL;
+    // Algoritmo del resumen de las descargas, o null para no calcularlo.
+    private volatile String downloadDigest;
+    // Algoritmo elegido con OPTS HASH, o null si sigue el que marca FEAT.
+    private volatile String hashAlgorithm;
+    // Uso de MODE Z, modo activo en el servidor y si lo ha rechazado.
+    private volatile int compression = COMPRESSION_OFF;
+    private volatile boolean modeZ;
+    private volatile boolean modeZRejected;
+    // Se reutiliza en todas las descargas comprimidas; el canal de datos solo admite una a la vez.
+    private Inflater inflater;
+    // Métricas de la sesión, que se suman también a las globales.
+    private volatile FtpMetrics metrics = new FtpMetrics(FtpMetrics.shared());
 
     /**
      * Crea una instancia de ClientFtpProtocolService.
@@ -39,7 +131,31 @@ public class ClientFtpProtocolService implements Runnable {
      *            ejemplo, System.out).
      */
     public ClientFtpProtocolService(OutputStream log) {
+        this(log, TransferExecutor.virtualThreads());
+    }
+
+    /**
+     * Crea una instancia de ClientFtpProtocolService que ejecuta sus tareas en el
+     * ejecutor indicado.
+     *
+     * @param log      OutputStream utilizado para registrar comandos y respuestas
+     *                 (por ejemplo, System.out).
+     * @param executor Ejecutor del hilo de escucha y de las transferencias.
+     */
+    public ClientFtpProtocolService(OutputStream log, TransferExecutor executor) {
         this.log = log;
+        this.executor = executor;
+        this.replyDecoder = new FtpReplyDecoder(new FtpReplyDecoder.Listener() {
+            @Override
+            public void onLine(byte[] buffer, int offset, int length) throws IOException {
+                log(AsyncLogSink.REPLY, buffer, offset, length);
+            }
+
+            @Override
+            public void onReply(FtpReply reply) {
+                handleReply(reply);
+            }
+        });
     }
 
     /**
@@ -51,68 +167,121 @@ public class ClientFtpProtocolService implements Runnable {
      * @throws IOException Si ocurre un error al establecer la conexión.
      */
     public void connectTo(String server, int port) throws IOException {
+        // El saludo 220 es la primera respuesta que llega, sin comando previo.
+        pendingReplies.add(new CompletableFuture<>());
         controlSocket = new Socket(server, port);
-        controlReader = new BufferedReader(new InputStreamReader(controlSocket.getInputStream()));
+        controlInput = controlSocket.getInputStream();
         controlWriter = new PrintWriter(controlSocket.getOutputStream(), true);
-        controlThread = new Thread(this);
-        controlThread.start();
+        executor.listen(this);
+    }
+
+    /**
+     * Conecta con el servidor FTP y registra el canal de control en un
+     * FtpReactor compartido, en lugar de dedicarle un hilo de escucha. El resto
+     * de métodos sendXxx funcionan igual que con connectTo(server, port).
+     *
+     * @param server  Dirección del servidor FTP.
+     * @param port    Puerto del servidor FTP.
+     * @param reactor Reactor que atenderá el canal de control.
+     * @throws IOException Si ocurre un error al establecer la conexión.
+     */
+    public void connectTo(String server, int port, FtpReactor reactor) throws IOException {
+        pendingReplies.add(new CompletableFuture<>());
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(server, port));
+        controlSocket = channel.socket();
+        this.reactor = reactor;
+        reactorConnection = reactor.register(channel, new FtpReactor.Handler() {
+            @Override
+            public void onData(ByteBuffer data) throws IOException {
+                replyDecoder.feed(data);
+            }
+
+            @Override
+            public void onClosed(IOException cause) {
+                onControlClosed(cause);
+            }
+        });
     }
 
     /**
-     * Hilo de escucha que lee las respuestas del servidor FTP de forma asíncrona.
-     * Si se detecta la respuesta 227 del comando PASV, se parsea para obtener la IP
-     * y puerto del canal de datos,
-     * y se notifica al hilo que espera dicha respuesta.
+     * Indica si el canal de control sigue abierto y se pueden enviar comandos.
+     *
+     * @return true si la sesión está conectada.
+     */
+    public boolean isConnected() {
+        return controlSocket != null && !controlClosedFlag;
+    }
+
+    /**
+     * Hilo de escucha que lee las respuestas del servidor FTP de forma asíncrona
+     * y las pasa al decodificador de respuestas.
      */
     @Override
     public void run() {
+        IOException failure = null;
         try {
-            String line;
-            while ((line = controlReader.readLine()) != null) {
-                log.write((line + "\n").getBytes());
-                if (line.startsWith("227")) {
-                    InetSocketAddress dataAddress = parse227(line);
-                    try {
-                        dataSocket = new Socket(dataAddress.getHostName(), dataAddress.getPort());
-                    } catch (IOException e) {
-                        log.write(("Error al conectar el canal de datos: " + e.getMessage() + "\n").getBytes());
-                    }
-                    if (pasvLatch != null) {
-                        pasvLatch.countDown();
-                    }
-                }
+            byte[] chunk = new byte[4096];
+            int read;
+            while ((read = controlInput.read(chunk)) != -1) {
+                replyDecoder.feed(chunk, 0, read);
             }
         } catch (IOException e) {
             if (controlSocket != null && !controlSocket.isClosed()) {
+                failure = e;
                 try {
-                    log.write(("Error en el canal de control: " + e.getMessage() + "\n").getBytes());
+                    log(AsyncLogSink.EVENT, "Error en el canal de control: " + e.getMessage());
                 } catch (IOException ex) {
 
                 }
             }
+        } finally {
+            onControlClosed(failure);
         }
     }
 
     /**
-     * Parsea la respuesta 227 para extraer la dirección IP y el puerto del canal de
-     * datos.
-     * La respuesta debe tener el formato:
-     * "227 Entering Passive Mode (h1,h2,h3,h4,p1,p2)."
+     * Trata una respuesta decodificada, tanto si llega por el hilo de escucha
+     * como por el reactor. No debe bloquearse: al completarse una respuesta final
+     * (código 2xx o superior) completa el primer future pendiente. Las
+     * respuestas preliminares 1xx solo quedan en el log.
      *
-     * @param response Respuesta del servidor.
-     * @return InetSocketAddress con la IP y puerto para el canal de datos.
-     * @throws IOException Si la respuesta no está en el formato esperado.
+     * @param reply Respuesta recibida del servidor.
      */
-    private InetSocketAddress parse227(String response) throws IOException {
-        Pattern pattern = Pattern.compile(".*\\((\\d+),(\\d+),(\\d+),(\\d+),(\\d+),(\\d+)\\).*");
-        Matcher matcher = pattern.matcher(response);
-        if (matcher.find()) {
-            String ip = matcher.group(1) + "." + matcher.group(2) + "." +
-                    matcher.group(3) + "." + matcher.group(4);
-            int port = Integer.parseInt(matcher.group(5)) * 256 + Integer.parseInt(matcher.group(6));
-            return new InetSocketAddress(ip, port);
-        } else {
-            throw new IOException("Respuesta PASV mal formateada: " + response);
+    private void handleReply(FtpReply reply) {
+        if (reply.getCode() < 200) {
+            return;
+        }
+        if (reply.getCode() >= 400) {
+            metrics.recordCommandError();
+        }
+        CompletableFuture<FtpReply> pending = pendingReplies.poll();
+        if (pending != null) {
+            pending.complete(reply);
+        }
+    }
+
+    /**
+     * Se invoca al cerrarse el canal de control. Falla los futures de las
+     * respuestas que ya no llegarán.
+     *
+     * @param cause Error que ha cerrado el canal, o null si se ha cerrado de
+     *              forma ordenada.
+     */
+    private void onControlClosed(IOException cause) {
+        controlClosedFlag = true;
+        controlFailure = cause;
+        failPendingReplies();
+        controlClosed.countDown();
+    }
+
+    /**
+     * Completa con error todos los futures pendientes, con la causa del cierre
+     * del canal de control si la hay.
+     */
+    private void failPendingReplies() {
+        CompletableFuture<FtpReply> pending;
+        while ((pending = pendingReplies.poll()) != null) {
+            pending.completeExceptionally(new IOException("Canal de control cerrado", controlFailure));
         }
     }
 
@@ -120,23 +289,299 @@ public class ClientFtpProtocolService implements Runnable {
      * Envía un comando al servidor FTP y lo registra en el log.
      *
      * @param command Comando FTP a enviar.
+     * @return Future que se completa con la respuesta final al comando.
      * @throws IOException Si ocurre un error al enviar el comando.
      */
-    private void sendCommand(String command) throws IOException {
-        controlWriter.println(command);
-        log.write((command + "\n").getBytes());
+    private CompletableFuture<FtpReply> sendCommand(String command) throws IOException {
+        return sendCommands(List.of(command)).get(0);
+    }
+
+    /**
+     * Envía varios comandos seguidos en una única escritura del canal de control
+     * y los registra en el log. El tiempo de respuesta de los comandos que no
+     * lanzan una transferencia se registra en las métricas.
+     *
+     * @param commands Comandos FTP a enviar.
+     * @return Futures de las respuestas, en el mismo orden que los comandos.
+     * @throws IOException Si ocurre un error al enviar los comandos.
+     */
+    private List<CompletableFuture<FtpReply>> sendCommands(List<String> commands) throws IOException {
+        List<CompletableFuture<FtpReply>> replies = new ArrayList<>(commands.size());
+        StringBuilder batch = new StringBuilder();
+        for (String command : commands) {
+            replies.add(new CompletableFuture<>());
+            batch.append(command).append("\r\n");
+        }
+        long sent = System.nanoTime();
+        synchronized (commandLock) {
+            pendingReplies.addAll(replies);
+            if (reactorConnection != null) {
+                reactor.send(reactorConnection, batch.toString().getBytes());
+            } else {
+                controlWriter.print(batch);
+                controlWriter.flush();
+            }
+        }
+        if (controlClosedFlag) {
+            failPendingReplies();
+        }
+        FtpMetrics metrics = this.metrics;
+        for (int i = 0; i < commands.size(); i++) {
+            if (!isTransferCommand(commands.get(i))) {
+                replies.get(i).thenRun(() -> metrics.recordCommand(System.nanoTime() - sent));
+            }
+        }
+        for (String command : commands) {
+            log(AsyncLogSink.COMMAND, command);
+        }
+        return replies;
+    }
+
+    /**
+     * Escribe una línea en el log. Si el log es un AsyncLogSink se encola con su
+     * tipo, sin esperar a que se escriba.
+     */
+    private void log(byte kind, byte[] buffer, int offset, int length) throws IOException {
+        if (log instanceof AsyncLogSink sink) {
+            sink.record(kind, buffer, offset, length);
+        } else {
+            log.write(buffer, offset, length);
+        }
+    }
+
+    private void log(byte kind, String line) throws IOException {
+        byte[] bytes = (line + "\n").getBytes();
+        log(kind, bytes, 0, bytes.length);
+    }
+
+    /**
+     * Indica si un comando abre una transferencia, cuya respuesta final no llega
+     * hasta que termina y por tanto no mide el tiempo de respuesta.
+     */
+    private static boolean isTransferCommand(String command) {
+        int space = command.indexOf(' ');
+        String verb = (space < 0 ? command : command.substring(0, space)).toUpperCase();
+        return switch (verb) {
+            case "RETR", "STOR", "APPE", "STOU", "LIST", "NLST", "MLSD" -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * Limita el ancho de banda de las transferencias de la sesión. Los listados
+     * van siempre con prioridad INTERACTIVE; el resto, con la indicada.
+     *
+     * @param shaper   Limitador compartido, o null para no limitar.
+     * @param priority TrafficShaper.INTERACTIVE, NORMAL o BULK.
+     */
+    public void setTrafficShaper(TrafficShaper shaper, int priority) {
+        this.trafficShaper = shaper;
+        this.transferPriority = priority;
+    }
+
+    /**
+     * Hace que las descargas de sendRetr(String, OutputStream, boolean) y
+     * sendRetr(String, Path) calculen un resumen de los datos mientras se
+     * copian; queda en las TransferStats y se puede comparar con el del
+     * servidor con verifyDownload. CRC32C es el más barato, pero los servidores
+     * solo lo ofrecen con HASH, y XCRC calcula CRC32.
+     *
+     * @param algorithm "CRC32C", "CRC32", "SHA-256", "SHA-1" o "MD5", o null
+     *                  para no calcularlo.
+     * @throws IllegalArgumentException Si el algoritmo no existe.
+     */
+    public void setDownloadDigest(String algorithm) {
+        downloadDigest = algorithm != null ? StreamingDigest.of(algorithm).getAlgorithm() : null;
+    }
+
+    /**
+     * Elige si las descargas y los listados se piden comprimidos con MODE Z.
+     * Si el servidor rechaza MODE Z, la sesión sigue sin comprimir. Los bytes
+     * comprimidos y descomprimidos quedan en las TransferStats y en las
+     * métricas.
+     *
+     * @param mode COMPRESSION_OFF, COMPRESSION_AUTO o COMPRESSION_ON.
+     */
+    public void setCompression(int mode) {
+        this.compression = mode;
+    }
+
+    /**
+     * Indica si la sesión tiene un canal de datos pendiente: abierto con
+     * sendPassv() y sin usar, o con una transferencia que no ha terminado.
+     *
+     * @return true si el canal de datos está ocupado.
+     */
+    public boolean hasPendingDataChannel() {
+        CompletableFuture<TransferStats> transfer = lastTransfer;
+        return dataSocket != null || (transfer != null && !transfer.isDone());
+    }
+
+    /**
+     * Devuelve la sesión a la configuración con la que se abre, para que otro
+     * la reutilice sin heredar la del anterior: sin limitación de ancho de
+     * banda, resumen, compresión ni caché de listados, con métricas nuevas y
+     * los tamaños de lectura, descarga proyectada y pipelining por defecto. En
+     * el servidor se vuelve a MODE S y a TYPE I si han cambiado. El directorio
+     * de trabajo no se toca.
+     *
+     * @throws IOException Si el servidor rechaza MODE S o TYPE I, o falla el
+     *                     envío.
+     */
+    public void resetOptions() throws IOException {
+        setTrafficShaper(null, TrafficShaper.NORMAL);
+        setDownloadDigest(null);
+        setCompression(COMPRESSION_OFF);
+        setListingCache(null);
+        setMetrics(new FtpMetrics(FtpMetrics.shared()));
+        setReadSizeLimits(8 * 1024, DirectBufferPool.LARGE);
+        setMappedDownloads(0, 64L * 1024 * 1024);
+        setPipelineWindow(32);
+        selectMode(false);
+        if (!"I".equals(transferType) && !await(sendType("I")).isPositiveCompletion()) {
+            throw new IOException("El servidor rechazó TYPE I");
+        }
+    }
+
+    /**
+     * Sustituye las métricas de la sesión, por ejemplo para que varias sesiones
+     * compartan unas propias.
+     *
+     * @param metrics Métricas donde se registrarán los comandos y
+     *                transferencias.
+     */
+    public void setMetrics(FtpMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return Métricas de la sesión.
+     */
+    public FtpMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Fija los límites del tamaño de lectura de las descargas. Cada descarga
+     * empieza con el mínimo y lo ajusta entre ambos según lo que recibe; el
+     * tamaño elegido aparece en las TransferStats.
+     *
+     * @param minSize Tamaño inicial y mínimo de lectura en bytes.
+     * @param maxSize Tamaño máximo de lectura en bytes.
+     */
+    public void setReadSizeLimits(int minSize, int maxSize) {
+        minReadSize = Math.max(1024, minSize);
+        maxReadSize = Math.max(minReadSize, maxSize);
+    }
+
+    /**
+     * Asigna la caché de listados que usa listDirectory, normalmente la de
+     * ListingCache.forServer para este servidor y usuario.
+     *
+     * @param cache Caché de listados o null para no usarla.
+     */
+    public void setListingCache(ListingCache cache) {
+        listingCache = cache;
+    }
+
+    /**
+     * Activa la descarga proyectada en memoria para sendRetr(String, Path): si
+     * SIZE indica que el archivo alcanza el umbral, el fichero local se reserva
+     * con ese tamaño y los datos se escriben sobre ventanas proyectadas del
+     * tamaño indicado.
+     *
+     * @param threshold  Tamaño mínimo del archivo en bytes, o 0 para
+     *                   desactivarlo.
+     * @param windowSize Tamaño de cada ventana proyectada en bytes; como máximo
+     *                   Integer.MAX_VALUE.
+     */
+    public void setMappedDownloads(long threshold, long windowSize) {
+        mappedThreshold = Math.max(0, threshold);
+        mappedWindow = Math.max(DirectBufferPool.SMALL, Math.min(Integer.MAX_VALUE, windowSize));
+    }
+
+    /**
+     * Fija el número máximo de comandos que pipeline() deja enviados sin
+     * respuesta.
+     *
+     * @param maxInFlight Número máximo de comandos en vuelo.
+     */
+    public void setPipelineWindow(int maxInFlight) {
+        this.pipelineWindow = Math.max(1, maxInFlight);
+    }
+
+    /**
+     * Envía una serie de comandos independientes sin esperar a la respuesta de
+     * cada uno, de forma que todos comparten el tiempo de ida y vuelta. Los
+     * comandos se escriben en bloques hasta llenar la ventana de pipelining;
+     * cuando se llena, se espera a que lleguen respuestas antes de enviar más.
+     * No debe usarse con comandos que abren el canal de datos (PASV, RETR, LIST).
+     *
+     * @param commands Comandos FTP a enviar (por ejemplo, "SIZE a.txt", "MDTM
+     *                 a.txt").
+     * @return Futures de las respuestas, en el mismo orden que los comandos.
+     * @throws IOException Si ocurre un error al enviar o se interrumpe la espera.
+     */
+    public List<CompletableFuture<FtpReply>> pipeline(List<String> commands) throws IOException {
+        List<CompletableFuture<FtpReply>> replies = new ArrayList<>(commands.size());
+        Semaphore window = new Semaphore(pipelineWindow);
+        int next = 0;
+        while (next < commands.size()) {
+            try {
+                window.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrumpido esperando respuestas del pipeline");
+            }
+            // Envía de una vez todos los comandos que quepan en la ventana.
+            int count = Math.min(1 + window.drainPermits(), commands.size() - next);
+            for (CompletableFuture<FtpReply> reply : sendCommands(commands.subList(next, next + count))) {
+                reply.whenComplete((r, e) -> window.release());
+                replies.add(reply);
+            }
+            next += count;
+        }
+        return replies;
+    }
+
+    /**
+     * Espera a que se complete la respuesta de un comando o el resultado de una
+     * transferencia, convirtiendo sus fallos en IOException.
+     *
+     * @param <T>    Tipo del resultado.
+     * @param future Future a esperar.
+     * @return Resultado del future.
+     * @throws IOException Si se cierra el canal de control, falla la
+     *                     transferencia o se interrumpe la espera.
+     */
+    public static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrumpido esperando respuesta del servidor");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+                    : new IOException(e.getCause());
+        }
     }
 
     /**
      * Envía los comandos USER y PASS para autenticarse en el servidor FTP.
+     * Ambos se envían seguidos, sin esperar a la respuesta de USER, para que los
+     * comandos posteriores conserven su orden.
      *
      * @param user Nombre de usuario.
      * @param pass Contraseña.
+     * @return Future con la respuesta a PASS, o la de USER si el servidor no
+     *         pide contraseña.
      * @throws IOException Si ocurre un error al enviar los comandos.
      */
-    public void authenticate(String user, String pass) throws IOException {
-        sendCommand("USER " + user);
-        sendCommand("PASS " + pass);
+    public CompletableFuture<FtpReply> authenticate(String user, String pass) throws IOException {
+        CompletableFuture<FtpReply> userReply = sendCommand("USER " + user);
+        CompletableFuture<FtpReply> passReply = sendCommand("PASS " + pass);
+        return userReply.thenCompose(reply -> reply.isPositiveIntermediate() ? passReply
+                : CompletableFuture.completedFuture(reply));
     }
 
     /**
@@ -146,14 +591,37 @@ public class ClientFtpProtocolService implements Runnable {
      * @throws IOException Si ocurre un error al cerrar la conexión.
      */
     public void close() throws IOException {
+        // Los hilos del ejecutor no mantienen viva la JVM: espera a la última
+        // transferencia para no cortarla.
+        CompletableFuture<TransferStats> transfer = lastTransfer;
+        if (transfer != null) {
+            try {
+                transfer.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+            }
+        }
+        // Un canal de datos abierto con sendPassv() y sin usar se cierra aquí.
+        if (dataSocket != null) {
+            releaseDataChannel();
+        }
+        synchronized (this) {
+            if (inflater != null) {
+                inflater.end();
+                inflater = null;
+            }
+        }
         sendCommand("QUIT");
-        if (controlSocket != null && !controlSocket.isClosed()) {
+        if (reactorConnection != null) {
+            reactor.close(reactorConnection);
+        } else if (controlSocket != null && !controlSocket.isClosed()) {
             controlSocket.close();
         }
-        // Espera a que el hilo de control finalice.
-        if (controlThread != null) {
+        // Espera a que el canal de control quede cerrado.
+        if (controlSocket != null) {
             try {
-                controlThread.join();
+                controlClosed.await();
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
             }
@@ -161,66 +629,356 @@ public class ClientFtpProtocolService implements Runnable {
     }
 
     /**
-     * Envía el comando QUIT y devuelve la cadena enviada.
+     * Envía el comando QUIT.
+     *
+     * @return Future con la respuesta del servidor.
+     * @throws IOException Si ocurre un error al enviar el comando.
+     */
+    public CompletableFuture<FtpReply> sendQuit() throws IOException {
+        return sendCommand("QUIT");
+    }
+
+    /**
+     * Envía el comando PWD para consultar el directorio actual.
      *
-     * @return Comando QUIT enviado.
+     * @return Future con la respuesta del servidor, que incluye el directorio.
      * @throws IOException Si ocurre un error al enviar el comando.
      */
-    public String sendQuit() throws IOException {
-        String command = "QUIT";
-        sendCommand(command);
-        return command;
+    public CompletableFuture<FtpReply> sendPwd() throws IOException {
+        return sendCommand("PWD");
     }
 
     /**
-     * Envía el comando PWD para consultar el directorio actual
-     * y devuelve la cadena enviada.
+     * Envía el comando NOOP, que no hace nada pero comprueba que la sesión sigue
+     * viva y evita que el servidor la cierre por inactividad.
      *
-     * @return Comando PWD enviado.
+     * @return Future con la respuesta del servidor.
      * @throws IOException Si ocurre un error al enviar el comando.
      */
-    public String sendPwd() throws IOException {
-        String command = "PWD";
-        sendCommand(command);
-        return command;
+    public CompletableFuture<FtpReply> sendNoop() throws IOException {
+        return sendCommand("NOOP");
     }
 
     /**
-     * Envía el comando CWD para cambiar al directorio especificado
-     * y devuelve la cadena enviada.
+     * Envía el comando CWD para cambiar al directorio especificado. Si la ruta
+     * es absoluta o se conoce el directorio actual, al aceptarse el cambio se
+     * toma como nuevo directorio de trabajo sin preguntarlo con PWD.
      *
      * @param down Directorio al que se desea cambiar.
-     * @return Comando CWD enviado.
+     * @return Future con la respuesta del servidor.
+     * @throws IOException Si ocurre un error al enviar el comando.
+     */
+    public CompletableFuture<FtpReply> sendCwd(String down) throws IOException {
+        String current = workingDirectory;
+        String target = down.startsWith("/") ? ListingCache.resolve("/", down)
+                : current != null ? ListingCache.resolve(current, down) : null;
+        int change = directoryChanges.incrementAndGet();
+        workingDirectory = null;
+        CompletableFuture<FtpReply> reply = sendCommand("CWD " + down);
+        if (target != null) {
+            reply.thenAccept(result -> {
+                if (result.isPositiveCompletion() && directoryChanges.get() == change) {
+                    workingDirectory = target;
+                }
+            });
+        }
+        return reply;
+    }
+
+    /**
+     * Envía el comando CDUP para subir un nivel en la estructura de directorios.
+     *
+     * @return Future con la respuesta del servidor.
+     * @throws IOException Si ocurre un error al enviar el comando.
+     */
+    public CompletableFuture<FtpReply> sendCdup() throws IOException {
+        directoryChanges.incrementAndGet();
+        workingDirectory = null;
+        return sendCommand("CDUP");
+    }
+
+    /**
+     * Devuelve el directorio de trabajo. Se pide con PWD solo si no se conoce:
+     * la primera vez y después de un CDUP o de un CWD relativo sin directorio
+     * previo conocido.
+     *
+     * @return Ruta absoluta del directorio de trabajo.
+     * @throws IOException Si el servidor rechaza PWD o la respuesta no trae la
+     *                     ruta entre comillas.
+     */
+    public String getWorkingDirectory() throws IOException {
+        String directory = workingDirectory;
+        if (directory != null) {
+            return directory;
+        }
+        FtpReply reply = await(sendPwd());
+        String text = reply.getMessage();
+        int start = text.indexOf('"');
+        if (reply.getCode() != 257 || start < 0) {
+            throw new IOException("Respuesta PWD inesperada: " + reply);
+        }
+        // Las comillas dentro de la ruta se escriben dobles.
+        StringBuilder path = new StringBuilder();
+        for (int i = start + 1; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"') {
+                if (i + 1 < text.length() && text.charAt(i + 1) == '"') {
+                    i++;
+                } else {
+                    break;
+                }
+            }
+            path.append(c);
+        }
+        workingDirectory = path.toString();
+        return workingDirectory;
+    }
+
+    /**
+     * Envía el comando DELE para borrar un archivo remoto. Invalida el listado
+     * guardado de su directorio.
+     *
+     * @param remote Nombre del archivo remoto.
+     * @return Future con la respuesta del servidor.
+     * @throws IOException Si ocurre un error al enviar el comando.
+     */
+    public CompletableFuture<FtpReply> sendDele(String remote) throws IOException {
+        return invalidateListing(remote, sendCommand("DELE " + remote));
+    }
+
+    /**
+     * Renombra o mueve un archivo remoto con RNFR y RNTO, que se envían seguidos.
+     * Si el servidor no responde 350 a RNFR, se devuelve esa respuesta. Invalida
+     * los listados guardados de los dos directorios.
+     *
+     * @param from Nombre actual.
+     * @param to   Nombre nuevo.
+     * @return Future con la respuesta a RNTO, o a RNFR si la rechaza.
+     * @throws IOException Si ocurre un error al enviar los comandos.
+     */
+    public CompletableFuture<FtpReply> sendRename(String from, String to) throws IOException {
+        List<CompletableFuture<FtpReply>> replies = sendCommands(List.of("RNFR " + from, "RNTO " + to));
+        CompletableFuture<FtpReply> reply = replies.get(0).thenCompose(
+                rnfr -> rnfr.isPositiveIntermediate() ? replies.get(1) : CompletableFuture.completedFuture(rnfr));
+        return invalidateListing(from, invalidateListing(to, reply));
+    }
+
+    /**
+     * Envía el comando TYPE para fijar el tipo de representación de los datos
+     * (por ejemplo, "I" para binario).
+     *
+     * @param type Tipo de representación.
+     * @return Future con la respuesta del servidor.
+     * @throws IOException Si ocurre un error al enviar el comando.
+     */
+    public CompletableFuture<FtpReply> sendType(String type) throws IOException {
+        return sendCommand("TYPE " + type).thenApply(reply -> {
+            if (reply.isPositiveCompletion()) {
+                transferType = type;
+            }
+            return reply;
+        });
+    }
+
+    /**
+     * Envía el comando SIZE y espera la respuesta 213 con el tamaño del archivo
+     * remoto.
+     *
+     * @param remote Nombre del archivo remoto.
+     * @return Tamaño del archivo en bytes.
+     * @throws IOException Si el servidor responde con un error o la respuesta no
+     *                     es válida.
+     */
+    public long sendSize(String remote) throws IOException {
+        FtpReply reply = await(sendCommand("SIZE " + remote));
+        if (reply.getCode() != 213) {
+            throw new IOException("No se pudo obtener el tamaño de " + remote + ": " + reply);
+        }
+        try {
+            return Long.parseLong(reply.getMessage());
+        } catch (NumberFormatException e) {
+            throw new IOException("Respuesta SIZE mal formateada: " + reply);
+        }
+    }
+
+    /**
+     * Envía el comando MDTM y espera la respuesta 213 con la fecha de última
+     * modificación del archivo remoto.
+     *
+     * @param remote Nombre del archivo remoto.
+     * @return Fecha en formato YYYYMMDDhhmmss o null si el servidor no la
+     *         proporciona.
+     * @throws IOException Si ocurre un error al enviar el comando.
+     */
+    public String sendMdtm(String remote) throws IOException {
+        FtpReply reply = await(sendCommand("MDTM " + remote));
+        return reply.getCode() == 213 ? reply.getMessage() : null;
+    }
+
+    /**
+     * Envía el comando FEAT y guarda las extensiones que anuncia el servidor,
+     * una por línea de la respuesta 211. Si el servidor no conoce FEAT, no se
+     * anuncia ninguna.
+     *
+     * @return Extensiones por nombre en mayúsculas, con sus parámetros como
+     *         valor (por ejemplo "MLST" con "type*;size*;modify*;").
      * @throws IOException Si ocurre un error al enviar el comando.
      */
-    public String sendCwd(String down) throws IOException {
-        String command = "CWD " + down;
-        sendCommand(command);
-        return command;
+    public Map<String, String> sendFeat() throws IOException {
+        FtpReply reply = await(sendCommand("FEAT"));
+        Map<String, String> result = new HashMap<>();
+        if (reply.getCode() == 211) {
+            for (String line : reply.getText().split("\n")) {
+                if (line.startsWith(" ")) {
+                    String feature = line.trim();
+                    int space = feature.indexOf(' ');
+                    String name = space < 0 ? feature : feature.substring(0, space);
+                    result.put(name.toUpperCase(Locale.ROOT), space < 0 ? "" : feature.substring(space + 1).trim());
+                }
+            }
+        }
+        features = Collections.unmodifiableMap(result);
+        return features;
+    }
+
+    /**
+     * Indica si el servidor anuncia una extensión. La primera vez se envía
+     * FEAT; después se usa la respuesta guardada.
+     *
+     * @param name Nombre de la extensión, por ejemplo "MLST" o "EPSV".
+     * @return true si el servidor la anuncia.
+     * @throws IOException Si ocurre un error al enviar FEAT.
+     */
+    public boolean hasFeature(String name) throws IOException {
+        Map<String, String> current = features;
+        if (current == null) {
+            current = sendFeat();
+        }
+        return current.containsKey(name.toUpperCase(Locale.ROOT));
     }
 
     /**
-     * Envía el comando CDUP para subir un nivel en la estructura de directorios
-     * y devuelve la cadena enviada.
+     * Pide al servidor el resumen de un archivo remoto. Si anuncia HASH con ese
+     * algoritmo se usa HASH, eligiéndolo antes con OPTS HASH; si no, se prueba
+     * el comando XCRC, XSHA256, XSHA1 o XMD5 que le corresponde.
      *
-     * @return Comando CDUP enviado.
+     * @param remote    Nombre del archivo remoto.
+     * @param algorithm "CRC32", "CRC32C", "SHA-256", "SHA-1" o "MD5".
+     * @return Resumen en hexadecimal en minúsculas, o null si el servidor no
+     *         sabe calcularlo con ese algoritmo.
+     * @throws IOException Si ocurre un error al enviar el comando o el servidor
+     *                     no puede calcularlo, por ejemplo porque el archivo no
+     *                     existe.
+     */
+    public String sendHash(String remote, String algorithm) throws IOException {
+        String name = algorithm.toUpperCase(Locale.ROOT);
+        int digits = name.startsWith("CRC32") ? 8 : StreamingDigest.of(name).finish().length * 2;
+        FtpReply reply = null;
+        String offered = hasFeature("HASH") ? features.get("HASH") : "";
+        for (String option : offered.split(";")) {
+            String hash = option.trim();
+            boolean selected = hash.endsWith("*");
+            if (selected) {
+                hash = hash.substring(0, hash.length() - 1);
+            }
+            if (!hash.equalsIgnoreCase(name)) {
+                continue;
+            }
+            selected = hashAlgorithm != null ? hash.equalsIgnoreCase(hashAlgorithm) : selected;
+            if (!selected) {
+                if (!await(sendCommand("OPTS HASH " + hash)).isPositiveCompletion()) {
+                    break;
+                }
+                hashAlgorithm = hash;
+            }
+            reply = await(sendCommand("HASH " + remote));
+            break;
+        }
+        if (reply == null) {
+            String command = switch (name) {
+                case "CRC32" -> "XCRC";
+                case "SHA-256" -> "XSHA256";
+                case "SHA-1" -> "XSHA1";
+                case "MD5" -> "XMD5";
+                default -> null;
+            };
+            if (command == null) {
+                return null;
+            }
+            reply = await(sendCommand(command + " " + remote));
+            if (reply.getCode() >= 500 && reply.getCode() <= 504) {
+                return null;
+            }
+        }
+        if (!reply.isPositiveCompletion()) {
+            throw new IOException("El servidor no pudo calcular el resumen de " + remote + ": " + reply);
+        }
+        // Las respuestas varían ("213 SHA-256 0-99 <resumen> nombre", "250 <resumen>"...): se busca el resumen.
+        for (String token : reply.getMessage().split("\\s+")) {
+            if (token.length() <= digits && token.length() >= (digits == 8 ? 1 : digits)
+                    && token.chars().allMatch(c -> Character.digit(c, 16) >= 0)) {
+                String hex = token.toLowerCase(Locale.ROOT);
+                return "0".repeat(digits - hex.length()) + hex;
+            }
+        }
+        throw new IOException("Respuesta de resumen mal formateada: " + reply);
+    }
+
+    /**
+     * Compara el resumen calculado durante una descarga con el que calcula el
+     * servidor para el archivo remoto.
+     *
+     * @param remote Nombre del archivo remoto descargado.
+     * @param stats  Estadísticas de la descarga, con el resumen calculado.
+     * @return true si coinciden, o false si la descarga no tiene resumen o el
+     *         servidor no sabe calcularlo con el mismo algoritmo.
+     * @throws IOException Si los resúmenes no coinciden o falla el comando.
+     */
+    public boolean verifyDownload(String remote, TransferStats stats) throws IOException {
+        if (stats.getDigestAlgorithm() == null) {
+            return false;
+        }
+        String expected = sendHash(remote, stats.getDigestAlgorithm());
+        if (expected == null) {
+            log(AsyncLogSink.EVENT, "El servidor no calcula " + stats.getDigestAlgorithm() + "; " + remote
+                    + " queda sin verificar");
+            return false;
+        }
+        if (!expected.equals(stats.getDigestHex())) {
+            throw new IOException("El resumen " + stats.getDigestAlgorithm() + " de " + remote
+                    + " no coincide: servidor " + expected + ", recibido " + stats.getDigestHex());
+        }
+        return true;
+    }
+
+    /**
+     * Envía el comando REST para que la siguiente transferencia comience en el
+     * desplazamiento indicado y espera la respuesta 350.
+     *
+     * @param offset Desplazamiento en bytes.
+     * @return true si el servidor acepta el comando, false si no lo soporta.
      * @throws IOException Si ocurre un error al enviar el comando.
      */
-    public String sendCdup() throws IOException {
-        String command = "CDUP";
-        sendCommand(command);
-        return command;
+    public boolean sendRest(long offset) throws IOException {
+        return await(sendCommand("REST " + offset)).getCode() == 350;
     }
 
     /**
-     * Envía el comando PASV para solicitar la apertura de un canal de datos.
-     * Se bloquea para evitar transferencias concurrentes y espera la respuesta 227
-     * para crear el socket del canal de datos.
+     * Solicita la apertura de un canal de datos en modo pasivo. Se envía EPSV y,
+     * si el servidor no lo reconoce, PASV; a partir de ahí la sesión usa PASV
+     * directamente.
+     * El canal de datos se conecta a la dirección IP del propio canal de control
+     * (IPv4 o IPv6) con el puerto de la respuesta, sin resolver nombres y sin
+     * usar la IP anunciada en la 227, que tras un NAT suele ser inalcanzable.
+     * Se bloquea para evitar transferencias concurrentes y, si no se puede
+     * conectar, se libera el canal para no bloquear las siguientes
+     * transferencias.
      *
-     * @return Comando PASV enviado.
-     * @throws IOException Si ocurre un error o si se interrumpe la espera.
+     * @return Future ya completado con la respuesta 229 o 227.
+     * @throws IOException Si el servidor rechaza el comando, ocurre un error o se
+     *                     interrumpe la espera.
      */
-    public String sendPassv() throws IOException {
+    public CompletableFuture<FtpReply> sendPassv() throws IOException {
         // Esto bloquea hasta que el canal de datos esté libre.
         synchronized (dataChannelLock) {
             while (dataChannelInUse.get()) {
@@ -232,71 +990,535 @@ public class ClientFtpProtocolService implements Runnable {
             }
             dataChannelInUse.set(true);
         }
-        pasvLatch = new CountDownLatch(1);
-        String command = "PASV";
-        sendCommand(command);
         try {
-            pasvLatch.await(); // Espera la respuesta 227 y la creación del dataSocket.
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw new IOException("Interrumpido esperando respuesta PASV");
+            CompletableFuture<FtpReply> future = null;
+            int port = -1;
+            long sent = System.nanoTime();
+            if (epsvSupported) {
+                future = sendCommand("EPSV");
+                FtpReply reply = await(future);
+                if (reply.getCode() == 229) {
+                    port = FtpReplyDecoder.parseEpsv(reply);
+                } else if (reply.getCode() >= 500 && reply.getCode() <= 502) {
+                    epsvSupported = false;
+                } else {
+                    throw new IOException("El servidor rechazó EPSV: " + reply);
+                }
+            }
+            if (port < 0) {
+                future = sendCommand("PASV");
+                FtpReply reply = await(future); // Espera la respuesta 227.
+                if (reply.getCode() != 227) {
+                    throw new IOException("El servidor rechazó PASV: " + reply);
+                }
+                port = FtpReplyDecoder.parsePasv(reply).getPort();
+            }
+            controlRttNanos = System.nanoTime() - sent;
+            InetSocketAddress dataAddress = new InetSocketAddress(controlSocket.getInetAddress(), port);
+            // Se abre como SocketChannel para poder usar transferFrom en las descargas.
+            dataSocket = SocketChannel.open(dataAddress).socket();
+            metrics.recordPasvSetup(System.nanoTime() - sent);
+            return future;
+        } catch (IOException e) {
+            metrics.recordDataConnectionError();
+            log(AsyncLogSink.EVENT, "Error al conectar el canal de datos: " + e.getMessage());
+            releaseDataChannel();
+            throw e;
+        }
+    }
+
+    /**
+     * Cierra el canal de datos abierto con sendPassv() que no llega a usarse y
+     * lo deja libre para la siguiente transferencia.
+     */
+    private void releaseDataChannel() {
+        if (dataSocket != null) {
+            try {
+                dataSocket.close();
+            } catch (IOException e) {
+            }
+            dataSocket = null;
+        }
+        synchronized (dataChannelLock) {
+            dataChannelInUse.set(false);
+            dataChannelLock.notifyAll();
         }
-        return command;
     }
 
     /**
      * Envía el comando RETR para descargar el archivo remoto indicado.
      * Se asume que previamente se ha llamado a sendPassv() para configurar el canal
      * de datos.
-     * Se lanza un hilo independiente que realiza la transferencia de datos.
+     * La transferencia de datos se ejecuta en el TransferExecutor de la sesión.
      *
      * @param remote      Nombre del archivo remoto a descargar.
      * @param out         OutputStream donde se copiarán los datos (por ejemplo,
      *                    FileOutputStream).
      * @param closeOutput Indica si se debe cerrar el OutputStream al finalizar la
      *                    transferencia.
-     * @return Comando RETR enviado.
+     * @return Future con la respuesta final, que llega al terminar la
+     *         transferencia.
      * @throws IOException Si el canal de datos no está iniciado o ocurre un error
      *                     al enviar el comando.
      */
-    public String sendRetr(String remote, OutputStream out, boolean closeOutput) throws IOException {
-        String command = "RETR " + remote;
-        sendCommand(command);
+    public CompletableFuture<FtpReply> sendRetr(String remote, OutputStream out, boolean closeOutput) throws IOException {
+        if (dataSocket == null) {
+            throw new IOException("Canal de datos no iniciado. Llama a sendPassv() antes de RETR.");
+        }
+        try {
+            boolean compressed = selectMode(true);
+            CompletableFuture<FtpReply> reply = sendCommand("RETR " + remote);
+            ClientFtpDataService dataService = new ClientFtpDataService(
+                    dataSocket, out, closeOutput, dataChannelLock, dataChannelInUse);
+            setDigest(dataService);
+            setInflater(dataService, compressed);
+            startTransfer(dataService);
+            // Reinicia el dataSocket para permitir futuras operaciones.
+            dataSocket = null;
+            return reply;
+        } catch (IOException | RuntimeException e) {
+            releaseDataChannel();
+            throw e;
+        }
+    }
+
+    /**
+     * Envía el comando RETR para descargar el archivo remoto directamente en un
+     * fichero local. Los datos se vuelcan del SocketChannel al FileChannel con
+     * transferFrom, sin copias intermedias en el heap. Si se han activado las
+     * descargas proyectadas y SIZE indica que el archivo alcanza el umbral, se
+     * escriben en su lugar sobre ventanas del fichero proyectadas en memoria.
+     * Se asume que previamente se ha llamado a sendPassv() para configurar el canal
+     * de datos.
+     *
+     * @param remote Nombre del archivo remoto a descargar.
+     * @param target Ruta del fichero local; se crea o se trunca si ya existe.
+     * @return Future con la respuesta final, que llega al terminar la
+     *         transferencia.
+     * @throws IOException Si el canal de datos no está iniciado, no se puede abrir
+     *                     el fichero o ocurre un error al enviar el comando.
+     */
+    public CompletableFuture<FtpReply> sendRetr(String remote, Path target) throws IOException {
         if (dataSocket == null) {
             throw new IOException("Canal de datos no iniciado. Llama a sendPassv() antes de RETR.");
         }
-        ClientFtpDataService dataService = new ClientFtpDataService(
-                dataSocket, out, closeOutput, dataChannelLock, dataChannelInUse);
-        new Thread(dataService).start();
-        // Reinicia el dataSocket para permitir futuras operaciones.
-        dataSocket = null;
-        return command;
+        FileChannel file = null;
+        try {
+            boolean compressed = selectMode(true);
+            long size = -1;
+            if (mappedThreshold > 0 && !compressed) {
+                try {
+                    size = sendSize(remote);
+                } catch (IOException e) {
+                    // Sin SIZE no se puede reservar el fichero: se descarga con transferFrom.
+                }
+            }
+            // El fichero se abre antes de RETR: si falla, el servidor aún no ha empezado a enviar.
+            boolean mapped = size >= mappedThreshold && size > 0;
+            if (mapped) {
+                file = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                // Reserva el tamaño final escribiendo el último byte; el resto queda disperso.
+                file.write(ByteBuffer.allocate(1), size - 1);
+            } else {
+                file = FileChannel.open(target, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            }
+            CompletableFuture<FtpReply> reply = sendCommand("RETR " + remote);
+            ClientFtpDataService dataService;
+            if (mapped) {
+                dataService = new ClientFtpDataService(dataSocket, file, new FileSegment(0, size), true,
+                        dataChannelLock, dataChannelInUse);
+                dataService.setMappedWindow(mappedWindow);
+            } else {
+                dataService = new ClientFtpDataService(dataSocket, file, dataChannelLock, dataChannelInUse);
+            }
+            setDigest(dataService);
+            setInflater(dataService, compressed);
+            startTransfer(dataService);
+            dataSocket = null;
+            return reply;
+        } catch (IOException | RuntimeException e) {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException closeError) {
+                }
+            }
+            releaseDataChannel();
+            throw e;
+        }
+    }
+
+    /**
+     * Envía el comando RETR para descargar un rango del archivo remoto en un
+     * FileChannel compartido. Los datos se escriben a partir de la posición del
+     * segmento y el canal de datos se cierra al alcanzar su final. Si el segmento
+     * no empieza en cero, debe haberse enviado antes REST con su posición.
+     * Se asume que previamente se ha llamado a sendPassv() para configurar el canal
+     * de datos.
+     *
+     * @param remote  Nombre del archivo remoto a descargar.
+     * @param target  FileChannel abierto para escritura; no se cierra al terminar.
+     * @param segment Rango del fichero que cubre esta transferencia.
+     * @return Future con la respuesta final, que llega al terminar la
+     *         transferencia.
+     * @throws IOException Si el canal de datos no está iniciado o ocurre un error
+     *                     al enviar el comando.
+     */
+    public CompletableFuture<FtpReply> sendRetr(String remote, FileChannel target, FileSegment segment) throws IOException {
+        if (dataSocket == null) {
+            throw new IOException("Canal de datos no iniciado. Llama a sendPassv() antes de RETR.");
+        }
+        try {
+            // Los límites del segmento son de datos sin comprimir.
+            selectMode(false);
+            CompletableFuture<FtpReply> reply = sendCommand("RETR " + remote);
+            ClientFtpDataService dataService = new ClientFtpDataService(
+                    dataSocket, target, segment, false, dataChannelLock, dataChannelInUse);
+            startTransfer(dataService);
+            dataSocket = null;
+            return reply;
+        } catch (IOException | RuntimeException e) {
+            releaseDataChannel();
+            throw e;
+        }
+    }
+
+    /**
+     * Envía el comando STOR para subir un fichero local con el nombre remoto
+     * indicado. El fichero se envía con transferTo, sin copias intermedias en el
+     * heap, y el rendimiento obtenido queda en getLastTransfer().
+     * Se asume que previamente se ha llamado a sendPassv() para configurar el canal
+     * de datos.
+     *
+     * @param source Ruta del fichero local a subir.
+     * @param remote Nombre del archivo remoto; se crea o se sobrescribe.
+     * @return Future con la respuesta final, que llega al terminar la
+     *         transferencia.
+     * @throws IOException Si el canal de datos no está iniciado, no se puede abrir
+     *                     el fichero o ocurre un error al enviar el comando.
+     */
+    public CompletableFuture<FtpReply> sendStor(Path source, String remote) throws IOException {
+        return sendUpload("STOR", remote, source, 0);
+    }
+
+    /**
+     * Envía el comando APPE para añadir un fichero local al final del archivo
+     * remoto indicado, que se crea si no existe.
+     * Se asume que previamente se ha llamado a sendPassv() para configurar el canal
+     * de datos.
+     *
+     * @param source Ruta del fichero local a subir.
+     * @param remote Nombre del archivo remoto.
+     * @return Future con la respuesta final, que llega al terminar la
+     *         transferencia.
+     * @throws IOException Si el canal de datos no está iniciado, no se puede abrir
+     *                     el fichero o ocurre un error al enviar el comando.
+     */
+    public CompletableFuture<FtpReply> sendAppe(Path source, String remote) throws IOException {
+        return sendUpload("APPE", remote, source, 0);
+    }
+
+    /**
+     * Envía el comando APPE con la parte del fichero local a partir de la
+     * posición indicada. Sirve para reanudar una subida cortada pidiendo antes
+     * con SIZE lo que ya tiene el servidor.
+     * Se asume que previamente se ha llamado a sendPassv() para configurar el canal
+     * de datos.
+     *
+     * @param source Ruta del fichero local a subir.
+     * @param offset Posición del fichero local desde la que se envía.
+     * @param remote Nombre del archivo remoto.
+     * @return Future con la respuesta final, que llega al terminar la
+     *         transferencia.
+     * @throws IOException Si el canal de datos no está iniciado, no se puede abrir
+     *                     el fichero o ocurre un error al enviar el comando.
+     */
+    public CompletableFuture<FtpReply> sendAppe(Path source, long offset, String remote) throws IOException {
+        return sendUpload("APPE", remote, source, offset);
+    }
+
+    /**
+     * Envía un comando de subida y lanza el envío del fichero por el canal de
+     * datos. Invalida el listado guardado del directorio destino.
+     */
+    private CompletableFuture<FtpReply> sendUpload(String command, String remote, Path source, long offset)
+            throws IOException {
+        if (dataSocket == null) {
+            throw new IOException("Canal de datos no iniciado. Llama a sendPassv() antes de " + command + ".");
+        }
+        FileChannel file = null;
+        try {
+            file = FileChannel.open(source, StandardOpenOption.READ);
+            selectMode(false);
+            CompletableFuture<FtpReply> reply = invalidateListing(remote, sendCommand(command + " " + remote));
+            ClientFtpDataService dataService = new ClientFtpDataService(
+                    dataSocket, file, offset, true, dataChannelLock, dataChannelInUse);
+            startTransfer(dataService);
+            dataSocket = null;
+            return reply;
+        } catch (IOException | RuntimeException e) {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException closeError) {
+                }
+            }
+            releaseDataChannel();
+            throw e;
+        }
     }
 
     /**
      * Envía el comando LIST para listar los archivos/directorios en el servidor.
      * Se asume que previamente se ha llamado a sendPassv() para configurar el canal
      * de datos.
-     * Se lanza un hilo independiente que realiza la transferencia de datos.
+     * La transferencia de datos se ejecuta en el TransferExecutor de la sesión.
      *
      * @param out         OutputStream donde se copiarán los datos (por ejemplo,
      *                    System.out).
      * @param closeOutput Indica si se debe cerrar el OutputStream al finalizar la
      *                    transferencia.
-     * @return Comando LIST enviado.
+     * @return Future con la respuesta final, que llega al terminar la
+     *         transferencia.
      * @throws IOException Si el canal de datos no está iniciado o ocurre un error
      *                     al enviar el comando.
      */
-    public String sendList(OutputStream out, boolean closeOutput) throws IOException {
-        String command = "LIST";
-        sendCommand(command);
+    public CompletableFuture<FtpReply> sendList(OutputStream out, boolean closeOutput) throws IOException {
+        return sendList(null, out, closeOutput);
+    }
+
+    /**
+     * Envía el comando LIST para listar el directorio indicado.
+     * Se asume que previamente se ha llamado a sendPassv() para configurar el canal
+     * de datos.
+     *
+     * @param path        Directorio remoto o null para el directorio actual.
+     * @param out         OutputStream donde se copiarán los datos.
+     * @param closeOutput Indica si se debe cerrar el OutputStream al finalizar la
+     *                    transferencia.
+     * @return Future con la respuesta final, que llega al terminar la
+     *         transferencia.
+     * @throws IOException Si el canal de datos no está iniciado o ocurre un error
+     *                     al enviar el comando.
+     */
+    public CompletableFuture<FtpReply> sendList(String path, OutputStream out, boolean closeOutput) throws IOException {
+        return sendListing(path == null ? "LIST" : "LIST " + path, out, closeOutput);
+    }
+
+    /**
+     * Envía el comando MLSD, que lista el directorio indicado con una línea por
+     * entrada en un formato normalizado (RFC 3659). El servidor lo admite si
+     * anuncia MLST en FEAT.
+     * Se asume que previamente se ha llamado a sendPassv() para configurar el canal
+     * de datos.
+     *
+     * @param path        Directorio remoto o null para el directorio actual.
+     * @param out         OutputStream donde se copiarán los datos.
+     * @param closeOutput Indica si se debe cerrar el OutputStream al finalizar la
+     *                    transferencia.
+     * @return Future con la respuesta final, que llega al terminar la
+     *         transferencia.
+     * @throws IOException Si el canal de datos no está iniciado o ocurre un error
+     *                     al enviar el comando.
+     */
+    public CompletableFuture<FtpReply> sendMlsd(String path, OutputStream out, boolean closeOutput) throws IOException {
+        return sendListing(path == null ? "MLSD" : "MLSD " + path, out, closeOutput);
+    }
+
+    /**
+     * Lista un directorio y devuelve sus entradas ya interpretadas. Se usa MLSD
+     * si el servidor lo anuncia en FEAT y, si no, LIST. Abre el canal de datos
+     * y espera a que termine la transferencia. Si la sesión tiene caché de
+     * listados y el directorio está en ella, se devuelve sin contactar con el
+     * servidor; ese listado es compartido y no se debe modificar.
+     *
+     * @param path Directorio remoto o null para el directorio actual.
+     * @return Listado del directorio.
+     * @throws IOException Si el servidor rechaza el listado u ocurre un error en
+     *                     la transferencia.
+     */
+    public DirectoryListing listDirectory(String path) throws IOException {
+        ListingCache cache = listingCache;
+        String key = null;
+        long version = 0;
+        if (cache != null) {
+            key = ListingCache.resolve(getWorkingDirectory(), path);
+            DirectoryListing cached = cache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+            version = cache.getVersion();
+        }
+        boolean mlsd = hasFeature("MLST");
+        ListingParser parser = new ListingParser(new DirectoryListing(), mlsd);
+        sendPassv();
+        FtpReply reply = await(mlsd ? sendMlsd(path, parser, true) : sendList(path, parser, true));
+        await(getLastTransfer());
+        if (reply.isError()) {
+            throw new IOException("Error al listar " + (path == null ? "el directorio actual" : path) + ": " + reply);
+        }
+        DirectoryListing listing = parser.getListing();
+        listing.trim();
+        if (cache != null) {
+            cache.put(key, listing, version);
+        }
+        return listing;
+    }
+
+    /**
+     * Invalida en la caché de listados el directorio que contiene la ruta
+     * indicada, al enviar el comando y otra vez al llegar su respuesta, para
+     * que no quede guardado un listado pedido mientras tanto. Si no se conoce
+     * el directorio de trabajo y la ruta es relativa, se vacía la caché entera
+     * antes que enviar un PWD en medio de otro comando.
+     *
+     * @param remote Ruta del archivo modificado.
+     * @param reply  Respuesta del comando que lo modifica.
+     * @return La misma respuesta.
+     */
+    private CompletableFuture<FtpReply> invalidateListing(String remote, CompletableFuture<FtpReply> reply) {
+        ListingCache cache = listingCache;
+        if (cache == null) {
+            return reply;
+        }
+        String directory = workingDirectory;
+        Runnable invalidate;
+        if (directory == null && !remote.startsWith("/")) {
+            invalidate = cache::clear;
+        } else {
+            String parent = ListingCache.parentOf(ListingCache.resolve(directory == null ? "/" : directory, remote));
+            invalidate = () -> cache.invalidate(parent);
+        }
+        invalidate.run();
+        reply.whenComplete((result, error) -> invalidate.run());
+        return reply;
+    }
+
+    /**
+     * Envía un comando de listado y lanza la copia del canal de datos.
+     */
+    private CompletableFuture<FtpReply> sendListing(String command, OutputStream out, boolean closeOutput)
+            throws IOException {
         if (dataSocket == null) {
-            throw new IOException("Canal de datos no iniciado. Llama a sendPassv() antes de LIST.");
+            throw new IOException("Canal de datos no iniciado. Llama a sendPassv() antes de " + command + ".");
+        }
+        try {
+            boolean compressed = selectMode(true);
+            CompletableFuture<FtpReply> reply = sendCommand(command);
+            ClientFtpDataService dataService = new ClientFtpDataService(
+                    dataSocket, out, closeOutput, dataChannelLock, dataChannelInUse);
+            setInflater(dataService, compressed);
+            startTransfer(dataService, TrafficShaper.INTERACTIVE);
+            dataSocket = null;
+            return reply;
+        } catch (IOException | RuntimeException e) {
+            releaseDataChannel();
+            throw e;
+        }
+    }
+
+    /**
+     * Devuelve el resultado de la última transferencia lanzada por el canal de
+     * datos, que se completa con sus estadísticas al finalizar.
+     *
+     * @return Future de la última transferencia o null si aún no se ha lanzado
+     *         ninguna.
+     */
+    public CompletableFuture<TransferStats> getLastTransfer() {
+        return lastTransfer;
+    }
+
+    /**
+     * Asigna a una descarga el resumen elegido con setDownloadDigest, si lo hay.
+     */
+    private void setDigest(ClientFtpDataService dataService) {
+        String algorithm = downloadDigest;
+        if (algorithm != null) {
+            dataService.setDigest(StreamingDigest.of(algorithm));
+        }
+    }
+
+    /**
+     * Pasa el servidor a MODE Z o a MODE S, según se quiera comprimir la
+     * siguiente transferencia y lo permitan setCompression y el servidor. Solo
+     * se envía MODE si cambia el modo activo.
+     *
+     * @param compress true si la transferencia admite compresión.
+     * @return true si la transferencia irá en MODE Z.
+     * @throws IOException Si falla el comando o el servidor no vuelve a MODE S.
+     */
+    private boolean selectMode(boolean compress) throws IOException {
+        boolean wanted = compress && !modeZRejected && switch (compression) {
+            case COMPRESSION_ON -> true;
+            case COMPRESSION_AUTO -> hasFeature("MODE") && features.get("MODE").toUpperCase(Locale.ROOT).contains("Z");
+            default -> false;
+        };
+        if (wanted != modeZ) {
+            FtpReply reply = await(sendCommand(wanted ? "MODE Z" : "MODE S"));
+            if (reply.isPositiveCompletion()) {
+                modeZ = wanted;
+            } else if (wanted) {
+                modeZRejected = true;
+                log(AsyncLogSink.EVENT, "El servidor no admite MODE Z; se sigue sin comprimir");
+            } else {
+                throw new IOException("El servidor no volvió a MODE S: " + reply);
+            }
         }
-        ClientFtpDataService dataService = new ClientFtpDataService(
-                dataSocket, out, closeOutput, dataChannelLock, dataChannelInUse);
-        new Thread(dataService).start();
-        dataSocket = null;
-        return command;
+        return modeZ;
+    }
+
+    /**
+     * Asigna a una descarga el Inflater de la sesión si va comprimida.
+     */
+    private synchronized void setInflater(ClientFtpDataService dataService, boolean compressed) {
+        if (!compressed) {
+            return;
+        }
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        dataService.setInflater(inflater);
+    }
+
+    /**
+     * Lanza la transferencia en el ejecutor, con el tamaño de lectura
+     * adaptativo de la sesión, y registra en el log y en las métricas el
+     * rendimiento obtenido o el error al finalizar.
+     *
+     * @param dataService Servicio del canal de datos a ejecutar.
+     */
+    private void startTransfer(ClientFtpDataService dataService) {
+        startTransfer(dataService, transferPriority);
+    }
+
+    /**
+     * Lanza la transferencia con la clase de prioridad indicada en el
+     * TrafficShaper de la sesión.
+     */
+    private void startTransfer(ClientFtpDataService dataService, int priority) {
+        dataService.setBufferSizer(new AdaptiveBufferSizer(minReadSize, maxReadSize, controlRttNanos));
+        TrafficShaper shaper = trafficShaper;
+        if (shaper != null) {
+            dataService.setTrafficFlow(shaper.flow(controlSocket.getInetAddress().getHostAddress(), priority));
+        }
+        lastTransfer = dataService.getResult();
+        FtpMetrics metrics = this.metrics;
+        lastTransfer.whenComplete((stats, error) -> {
+            String message;
+            if (error == null) {
+                metrics.recordTransfer(dataService.isUpload(), stats);
+                message = "Transferencia finalizada: " + stats;
+            } else {
+                metrics.recordTransferError();
+                message = "Error en la transferencia: " + error.getMessage();
+            }
+            try {
+                log(AsyncLogSink.EVENT, message);
+            } catch (IOException e) {
+            }
+        });
+        executor.submit(dataService);
     }
 }
@@ -0,0 +1,150 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * La clase DirectBufferPool reparte ByteBuffer directos (fuera del heap) entre
+ * las transferencias del canal de datos. Cada transferencia toma un buffer al
+ * empezar y lo devuelve al terminar, de modo que miles de transferencias
+ * pequeñas no reservan memoria nueva y los datos pasan del socket al buffer sin
+ * copiarse al heap.
+ * Hay dos tamaños, 64 KB y 1 MB, cada uno con un máximo de buffers guardados;
+ * lo que se devuelve por encima de ese máximo se deja para el recolector. Se
+ * llevan las cuentas de aciertos, fallos y bytes prestados.
+ *
+ * @author RoberRey
+ */
+public class DirectBufferPool {
+
+    /** Tamaño de los buffers pequeños. */
+    public static final int SMALL = 64 * 1024;
+    /** Tamaño de los buffers grandes. */
+    public static final int LARGE = 1024 * 1024;
+
+    private static final DirectBufferPool SHARED = new DirectBufferPool(64, 16);
+
+    private final SizeClass small;
+    private final SizeClass large;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong outstandingBytes = new AtomicLong();
+
+    /**
+     * Buffers libres de un mismo tamaño.
+     */
+    private static final class SizeClass {
+        private final int size;
+        private final int maxPooled;
+        private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pooled = new AtomicInteger();
+
+        private SizeClass(int size, int maxPooled) {
+            this.size = size;
+            this.maxPooled = maxPooled;
+        }
+    }
+
+    /**
+     * Crea una instancia de DirectBufferPool.
+     *
+     * @param maxSmall Máximo de buffers de 64 KB guardados.
+     * @param maxLarge Máximo de buffers de 1 MB guardados.
+     */
+    public DirectBufferPool(int maxSmall, int maxLarge) {
+        small = new SizeClass(SMALL, maxSmall);
+        large = new SizeClass(LARGE, maxLarge);
+    }
+
+    /**
+     * Devuelve el pool compartido por defecto, que guarda hasta 64 buffers de
+     * 64 KB y 16 de 1 MB (20 MB en total).
+     *
+     * @return Pool compartido.
+     */
+    public static DirectBufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * Presta un buffer directo con al menos la capacidad indicada, vacío y listo
+     * para escribir en él. Las peticiones de más de 1 MB se atienden con un
+     * buffer nuevo que no se guarda al devolverlo.
+     *
+     * @param minCapacity Capacidad mínima necesaria.
+     * @return Buffer prestado; hay que devolverlo con release.
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        SizeClass sizeClass = classFor(minCapacity);
+        ByteBuffer buffer = sizeClass != null ? sizeClass.free.poll() : null;
+        if (buffer != null) {
+            sizeClass.pooled.decrementAndGet();
+            hits.incrementAndGet();
+            buffer.clear();
+        } else {
+            misses.incrementAndGet();
+            buffer = ByteBuffer.allocateDirect(sizeClass != null ? sizeClass.size : minCapacity);
+        }
+        outstandingBytes.addAndGet(buffer.capacity());
+        return buffer;
+    }
+
+    /**
+     * Devuelve un buffer prestado con acquire.
+     *
+     * @param buffer Buffer a devolver; no se debe usar después.
+     */
+    public void release(ByteBuffer buffer) {
+        outstandingBytes.addAndGet(-buffer.capacity());
+        SizeClass sizeClass = buffer.capacity() == SMALL ? small : buffer.capacity() == LARGE ? large : null;
+        if (sizeClass != null && sizeClass.pooled.incrementAndGet() <= sizeClass.maxPooled) {
+            sizeClass.free.add(buffer);
+        } else if (sizeClass != null) {
+            sizeClass.pooled.decrementAndGet();
+        }
+    }
+
+    /**
+     * Elige el tamaño de buffer para una capacidad o null si no cabe en ninguno.
+     */
+    private SizeClass classFor(int minCapacity) {
+        if (minCapacity <= SMALL) {
+            return small;
+        }
+        return minCapacity <= LARGE ? large : null;
+    }
+
+    /**
+     * @return Número de préstamos atendidos con un buffer guardado.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return Número de préstamos que han necesitado reservar un buffer nuevo.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return Bytes de los buffers prestados y aún no devueltos.
+     */
+    public long getOutstandingBytes() {
+        return outstandingBytes.get();
+    }
+
+    /**
+     * @return Bytes de los buffers guardados en el pool, listos para prestarse.
+     */
+    public long getPooledBytes() {
+        return (long) small.pooled.get() * SMALL + (long) large.pooled.get() * LARGE;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d aciertos, %d fallos, %d KB prestados, %d KB libres",
+                getHits(), getMisses(), getOutstandingBytes() / 1024, getPooledBytes() / 1024);
+    }
+}
@@ -0,0 +1,194 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * La clase DirectoryListing guarda el contenido de un directorio remoto por
+ * columnas, en arrays de tipos primitivos, en lugar de un objeto por entrada.
+ * Los nombres se guardan seguidos, en UTF-8, en un único byte[] y cada
+ * entrada solo apunta a su posición; el tamaño, la fecha, el tipo y los
+ * permisos van cada uno en su array. Así una entrada ocupa unos 23 bytes más
+ * su nombre, y un listado de un millón de ficheros cabe en unas decenas de MB.
+ * A las entradas se accede por su índice, de 0 a size() - 1.
+ *
+ * @author RoberRey
+ */
+public class DirectoryListing {
+
+    /** Fichero normal. */
+    public static final byte FILE = 0;
+    /** Directorio. */
+    public static final byte DIRECTORY = 1;
+    /** Enlace simbólico. */
+    public static final byte LINK = 2;
+    /** Cualquier otro tipo. */
+    public static final byte OTHER = 3;
+
+    /** Valor de tamaño, fecha o permisos desconocido. */
+    public static final int UNKNOWN = -1;
+
+    private int count;
+    private byte[] names = new byte[1024];
+    private int namesLength;
+    // Inicio de cada nombre en names; el final es el inicio del siguiente.
+    private int[] nameOffsets = new int[64];
+    private long[] sizes = new long[64];
+    private long[] modified = new long[64];
+    private byte[] types = new byte[64];
+    private short[] permissions = new short[64];
+
+    /**
+     * @return Número de entradas.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Añade una entrada con el nombre codificado en UTF-8.
+     *
+     * @param name        Array con el nombre.
+     * @param offset      Posición del nombre en el array.
+     * @param length      Longitud del nombre en bytes.
+     * @param size        Tamaño en bytes o UNKNOWN.
+     * @param modified    Fecha de modificación en milisegundos desde 1970 (UTC)
+     *                    o UNKNOWN.
+     * @param type        FILE, DIRECTORY, LINK u OTHER.
+     * @param permissions Permisos en el formato de Unix (por ejemplo 0755) o
+     *                    UNKNOWN.
+     */
+    public void add(byte[] name, int offset, int length, long size, long modified, byte type, int permissions) {
+        if (count == sizes.length) {
+            int capacity = count * 2;
+            nameOffsets = Arrays.copyOf(nameOffsets, capacity + 1);
+            sizes = Arrays.copyOf(sizes, capacity);
+            this.modified = Arrays.copyOf(this.modified, capacity);
+            types = Arrays.copyOf(types, capacity);
+            this.permissions = Arrays.copyOf(this.permissions, capacity);
+        }
+        if (namesLength + length > names.length) {
+            names = Arrays.copyOf(names, Math.max(names.length * 2, namesLength + length));
+        }
+        System.arraycopy(name, offset, names, namesLength, length);
+        nameOffsets[count] = namesLength;
+        namesLength += length;
+        sizes[count] = size;
+        this.modified[count] = modified;
+        types[count] = type;
+        this.permissions[count] = (short) permissions;
+        count++;
+    }
+
+    /**
+     * Añade una entrada.
+     *
+     * @param name        Nombre de la entrada.
+     * @param size        Tamaño en bytes o UNKNOWN.
+     * @param modified    Fecha de modificación en milisegundos desde 1970 (UTC)
+     *                    o UNKNOWN.
+     * @param type        FILE, DIRECTORY, LINK u OTHER.
+     * @param permissions Permisos en el formato de Unix o UNKNOWN.
+     */
+    public void add(String name, long size, long modified, byte type, int permissions) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        add(bytes, 0, bytes.length, size, modified, type, permissions);
+    }
+
+    /**
+     * @param index Índice de la entrada.
+     * @return Nombre de la entrada; se decodifica en cada llamada.
+     */
+    public String getName(int index) {
+        int start = nameOffsets[check(index)];
+        int end = index + 1 < count ? nameOffsets[index + 1] : namesLength;
+        return new String(names, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param index Índice de la entrada.
+     * @return Tamaño en bytes o UNKNOWN.
+     */
+    public long getSize(int index) {
+        return sizes[check(index)];
+    }
+
+    /**
+     * @param index Índice de la entrada.
+     * @return Fecha de modificación en milisegundos desde 1970 (UTC) o UNKNOWN.
+     */
+    public long getModified(int index) {
+        return modified[check(index)];
+    }
+
+    /**
+     * @param index Índice de la entrada.
+     * @return FILE, DIRECTORY, LINK u OTHER.
+     */
+    public byte getType(int index) {
+        return types[check(index)];
+    }
+
+    /**
+     * @param index Índice de la entrada.
+     * @return Permisos en el formato de Unix o UNKNOWN.
+     */
+    public int getPermissions(int index) {
+        return permissions[check(index)];
+    }
+
+    /**
+     * @param index Índice de la entrada.
+     * @return true si la entrada es un directorio.
+     */
+    public boolean isDirectory(int index) {
+        return types[check(index)] == DIRECTORY;
+    }
+
+    /**
+     * Busca una entrada por su nombre comparando los bytes, sin decodificar los
+     * nombres.
+     *
+     * @param name Nombre buscado.
+     * @return Índice de la entrada o -1 si no está.
+     */
+    public int indexOf(String name) {
+        byte[] wanted = name.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < count; i++) {
+            int start = nameOffsets[i];
+            int end = i + 1 < count ? nameOffsets[i + 1] : namesLength;
+            if (Arrays.equals(names, start, end, wanted, 0, wanted.length)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Estima la memoria que ocupan los arrays del listado.
+     *
+     * @return Bytes reservados.
+     */
+    public long getMemoryFootprint() {
+        return names.length + 4L * nameOffsets.length + 8L * sizes.length + 8L * modified.length
+                + types.length + 2L * permissions.length;
+    }
+
+    /**
+     * Ajusta los arrays al número de entradas para no reservar más de lo
+     * necesario una vez terminado el listado.
+     */
+    public void trim() {
+        names = Arrays.copyOf(names, namesLength);
+        nameOffsets = Arrays.copyOf(nameOffsets, count + 1);
+        sizes = Arrays.copyOf(sizes, Math.max(count, 1));
+        modified = Arrays.copyOf(modified, Math.max(count, 1));
+        types = Arrays.copyOf(types, Math.max(count, 1));
+        permissions = Arrays.copyOf(permissions, Math.max(count, 1));
+    }
+
+    private int check(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Entrada " + index + " de " + count);
+        }
+        return index;
+    }
+}
@@ -0,0 +1,144 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+/**
+ * La clase DownloadCheckpoint gestiona el diario de control de una descarga
+ * reanudable. El diario se guarda junto al fichero destino, con el sufijo
+ * ".ftpjournal", y recoge el archivo remoto, su tamaño, su fecha de
+ * modificación (MDTM) y los bytes ya escritos de forma duradera en disco.
+ * Cada actualización se escribe en un fichero temporal, se sincroniza y se
+ * renombra sobre el anterior, de modo que un corte nunca deja un diario a
+ * medias.
+ *
+ * @author RoberRey
+ */
+public class DownloadCheckpoint {
+
+    private static final String SUFFIX = ".ftpjournal";
+
+    private final Path journal;
+    private final String remote;
+    private final long size;
+    private final String modified;
+    private long committed;
+
+    /**
+     * Crea el diario de una descarga sin ningún byte confirmado.
+     *
+     * @param target   Fichero local destino de la descarga.
+     * @param remote   Nombre del archivo remoto.
+     * @param size     Tamaño del archivo remoto.
+     * @param modified Fecha de modificación del archivo remoto o null si no se
+     *                 conoce.
+     */
+    public DownloadCheckpoint(Path target, String remote, long size, String modified) {
+        this.journal = journalPath(target);
+        this.remote = remote;
+        this.size = size;
+        this.modified = modified == null ? "" : modified;
+    }
+
+    /**
+     * Carga el diario existente del fichero destino.
+     *
+     * @param target Fichero local destino de la descarga.
+     * @return Diario leído o null si no existe o está dañado.
+     * @throws IOException Si ocurre un error al leer el diario.
+     */
+    public static DownloadCheckpoint load(Path target) throws IOException {
+        Path journal = journalPath(target);
+        if (!Files.exists(journal)) {
+            return null;
+        }
+        Properties props = new Properties();
+        try (InputStream in = Files.newInputStream(journal)) {
+            props.load(in);
+        }
+        String remote = props.getProperty("remote");
+        String size = props.getProperty("size");
+        String committed = props.getProperty("committed");
+        if (remote == null || size == null || committed == null) {
+            return null;
+        }
+        try {
+            DownloadCheckpoint checkpoint = new DownloadCheckpoint(target, remote, Long.parseLong(size),
+                    props.getProperty("modified"));
+            checkpoint.committed = Long.parseLong(committed);
+            return checkpoint;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Devuelve la ruta del diario asociado a un fichero destino.
+     *
+     * @param target Fichero local destino de la descarga.
+     * @return Ruta del diario.
+     */
+    public static Path journalPath(Path target) {
+        return target.resolveSibling(target.getFileName() + SUFFIX);
+    }
+
+    /**
+     * Comprueba si el diario corresponde a la misma versión del archivo remoto.
+     *
+     * @param remote   Nombre del archivo remoto.
+     * @param size     Tamaño actual del archivo remoto.
+     * @param modified Fecha de modificación actual o null si no se conoce.
+     * @return true si se puede reanudar la descarga a partir de este diario.
+     */
+    public boolean matches(String remote, long size, String modified) {
+        return this.remote.equals(remote) && this.size == size
+                && this.modified.equals(modified == null ? "" : modified);
+    }
+
+    /**
+     * @return Bytes escritos de forma duradera en el fichero destino.
+     */
+    public long getCommitted() {
+        return committed;
+    }
+
+    /**
+     * Registra un nuevo desplazamiento confirmado. Los datos del fichero hasta
+     * ese punto deben haberse sincronizado antes con disco.
+     *
+     * @param offset Bytes escritos de forma duradera.
+     * @throws IOException Si ocurre un error al escribir el diario.
+     */
+    public void commit(long offset) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("remote", remote);
+        props.setProperty("size", Long.toString(size));
+        props.setProperty("modified", modified);
+        props.setProperty("committed", Long.toString(offset));
+        Path temp = journal.resolveSibling(journal.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            OutputStream out = Channels.newOutputStream(channel);
+            props.store(out, null);
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temp, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        committed = offset;
+    }
+
+    /**
+     * Borra el diario una vez completada la descarga.
+     *
+     * @throws IOException Si ocurre un error al borrar el fichero.
+     */
+    public void delete() throws IOException {
+        Files.deleteIfExists(journal);
+    }
+}
@@ -0,0 +1,75 @@
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * La clase FairTaskQueue es una cola de tareas repartida en subcolas con
+ * nombre (por ejemplo, una por trabajo o usuario). Las tareas se entregan por
+ * turnos entre las subcolas con trabajo pendiente, de forma que un trabajo que
+ * encola miles de descargas no deja esperando a otro que solo encola unas
+ * pocas.
+ *
+ * @param <T> Tipo de las tareas.
+ * @author RoberRey
+ */
+public class FairTaskQueue<T> {
+
+    private final Map<String, Queue<T>> queues = new HashMap<>();
+    // Subcolas con tareas, en el orden en que les toca turno.
+    private final Queue<String> turns = new ArrayDeque<>();
+
+    /**
+     * Añade una tarea al final de su subcola.
+     *
+     * @param queue Nombre de la subcola.
+     * @param task  Tarea a añadir.
+     */
+    public synchronized void put(String queue, T task) {
+        Queue<T> tasks = queues.get(queue);
+        if (tasks == null) {
+            tasks = new ArrayDeque<>();
+            queues.put(queue, tasks);
+            turns.add(queue);
+        }
+        tasks.add(task);
+        notifyAll();
+    }
+
+    /**
+     * Saca la siguiente tarea de la subcola a la que le toca turno, esperando si
+     * no hay ninguna.
+     *
+     * @return Siguiente tarea.
+     * @throws InterruptedException Si se interrumpe la espera.
+     */
+    public synchronized T take() throws InterruptedException {
+        while (turns.isEmpty()) {
+            wait();
+        }
+        String queue = turns.poll();
+        Queue<T> tasks = queues.get(queue);
+        T task = tasks.poll();
+        if (tasks.isEmpty()) {
+            queues.remove(queue);
+        } else {
+            turns.add(queue);
+        }
+        return task;
+    }
+
+    /**
+     * Vacía la cola y devuelve las tareas que no llegaron a entregarse.
+     *
+     * @return Tareas pendientes.
+     */
+    public synchronized Queue<T> drain() {
+        Queue<T> pending = new ArrayDeque<>();
+        for (String queue : turns) {
+            pending.addAll(queues.get(queue));
+        }
+        queues.clear();
+        turns.clear();
+        return pending;
+    }
+}
@@ -0,0 +1,89 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * La clase FileSegment representa un rango de bytes [inicio, fin) de un fichero
+ * que se descarga por un canal de datos. Lleva la cuenta de la posición ya
+ * escrita y permite reducir su final mientras la transferencia está en curso,
+ * de forma que otra sesión pueda quedarse con la parte pendiente.
+ *
+ * @author RoberRey
+ */
+public class FileSegment {
+
+    private final long start;
+    private final AtomicLong position;
+    private final AtomicLong end;
+
+    /**
+     * Crea un segmento que abarca los bytes desde start (incluido) hasta end
+     * (excluido).
+     *
+     * @param start Desplazamiento inicial dentro del fichero.
+     * @param end   Desplazamiento final, no incluido.
+     */
+    public FileSegment(long start, long end) {
+        this.start = start;
+        this.position = new AtomicLong(start);
+        this.end = new AtomicLong(end);
+    }
+
+    /**
+     * @return Desplazamiento inicial del segmento.
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * @return Siguiente desplazamiento a escribir.
+     */
+    public long getPosition() {
+        return position.get();
+    }
+
+    /**
+     * @return Desplazamiento final actual, no incluido.
+     */
+    public long getEnd() {
+        return end.get();
+    }
+
+    /**
+     * @return Número de bytes que quedan por escribir.
+     */
+    public long remaining() {
+        return Math.max(0, end.get() - position.get());
+    }
+
+    /**
+     * Avanza la posición del segmento tras escribir bytes.
+     *
+     * @param bytes Número de bytes escritos.
+     */
+    public void advance(long bytes) {
+        position.addAndGet(bytes);
+    }
+
+    /**
+     * Divide el segmento por la mitad de lo que le queda pendiente. El segmento
+     * actual se queda con la primera mitad y se devuelve otro con la segunda.
+     * Si se escriben de más algunos bytes por encima del nuevo final, son los
+     * mismos que escribirá el otro segmento, por lo que no hay conflicto.
+     *
+     * @param minSize Tamaño mínimo de cada mitad para que merezca la pena dividir.
+     * @return Nuevo segmento con la segunda mitad o null si no se puede dividir.
+     */
+    public FileSegment split(long minSize) {
+        while (true) {
+            long currentEnd = end.get();
+            long pending = currentEnd - position.get();
+            if (pending < 2 * minSize) {
+                return null;
+            }
+            long middle = currentEnd - pending / 2;
+            if (end.compareAndSet(currentEnd, middle)) {
+                return new FileSegment(middle, currentEnd);
+            }
+        }
+    }
+}
@@ -13,7 +13,10 @@ import java.io.IOException;
 public class FtpClientMain {
     public static void main(String[] args) {
         try {
-            ClientFtpProtocolService ftpClient = new ClientFtpProtocolService(System.out);
+            // El log se escribe en la salida de error desde otro hilo, sin frenar el canal de
+            // control ni mezclarse con el listado, que va a la salida estándar.
+            AsyncLogSink log = new AsyncLogSink(System.err);
+            ClientFtpProtocolService ftpClient = new ClientFtpProtocolService(log);
             ftpClient.connectTo("ftp.dlptest.com", 21);
 
             ftpClient.authenticate("dlpuser", "rNrKYTX9g7z3RgJRmxWuGHbeu");
@@ -28,8 +31,14 @@ public class FtpClientMain {
              * ftpClient.sendPassv();
              * ftpClient.sendRetr("archivo.txt", new FileOutputStream("archivo.txt"), true);
              */
+            // Para subir un archivo, descomentar y ajusta el nombre y ruta del archivo.
+            /*
+             * ftpClient.sendPassv();
+             * ftpClient.sendStor(Path.of("archivo.txt"), "archivo.txt");
+             */
             ftpClient.sendQuit();
             ftpClient.close();
+            log.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
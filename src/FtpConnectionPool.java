@@ -0,0 +1,362 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * La clase FtpConnectionPool guarda sesiones FTP ya conectadas y autenticadas
+ * para reutilizarlas, de modo que un trabajo corto no paga cada vez la conexión
+ * TCP, el saludo y USER/PASS (tres o cuatro viajes de ida y vuelta). Las
+ * sesiones se agrupan por servidor, puerto y usuario.
+ * Al devolver una sesión se vuelve al directorio en el que empezó, si ha
+ * cambiado, se deshace la configuración que le haya puesto quien la tenía
+ * (TYPE, MODE Z, resumen, limitación de ancho de banda...) y se guarda si no
+ * se ha superado el máximo de sesiones libres por servidor; si no, se cierra.
+ * Las que se devuelven con un canal de datos pendiente se cierran.
+ * Un hilo envía NOOP a las sesiones libres cada cierto tiempo para que el
+ * servidor no las cierre por inactividad, y cierra las que llevan demasiado
+ * tiempo sin usarse. Al prestar una sesión se comprueba que sigue conectada
+ * y, si lleva un rato libre, que responde a un NOOP; las que fallan se
+ * descartan.
+ * Las sesiones libres siguen conectadas al servidor pero no cuentan para
+ * HostConnectionLimits, así que conviene que el máximo de libres sea pequeño.
+ *
+ * @author RoberRey
+ */
+public class FtpConnectionPool implements Closeable {
+
+    // Una sesión que lleva menos que esto libre se presta sin comprobarla con NOOP.
+    private static final long VALIDATE_AFTER_MILLIS = 2_000;
+
+    /**
+     * Sesión del pool con los datos necesarios para devolverla.
+     */
+    private static final class Entry {
+        private final String key;
+        private final ClientFtpProtocolService session;
+        private final String homeDirectory;
+        private long idleSince;
+        // Última vez que se comprobó con NOOP o se devolvió.
+        private long lastCheck;
+
+        private Entry(String key, ClientFtpProtocolService session, String homeDirectory) {
+            this.key = key;
+            this.session = session;
+            this.homeDirectory = homeDirectory;
+        }
+    }
+
+    private final OutputStream log;
+    private final int maxIdlePerKey;
+    private final long keepaliveMillis;
+    private final long idleTimeoutMillis;
+    // Sesiones libres por servidor; la más reciente al principio.
+    private final Map<String, Deque<Entry>> idle = new HashMap<>();
+    private final Map<ClientFtpProtocolService, Entry> borrowed = new ConcurrentHashMap<>();
+    private final Thread keepalive;
+    private long created;
+    private long reused;
+    private long evicted;
+    private boolean closed;
+
+    /**
+     * Crea un pool que guarda hasta 4 sesiones libres por servidor, envía NOOP
+     * cada 60 segundos y cierra las sesiones libres durante más de 5 minutos.
+     *
+     * @param log OutputStream utilizado por las sesiones para registrar comandos
+     *            y respuestas.
+     */
+    public FtpConnectionPool(OutputStream log) {
+        this(log, 4, 60_000, 300_000);
+    }
+
+    /**
+     * Crea una instancia de FtpConnectionPool.
+     *
+     * @param log               OutputStream utilizado por las sesiones para
+     *                          registrar comandos y respuestas.
+     * @param maxIdlePerKey     Máximo de sesiones libres por servidor, puerto y
+     *                          usuario.
+     * @param keepaliveMillis   Intervalo entre NOOP de una sesión libre.
+     * @param idleTimeoutMillis Tiempo libre tras el cual se cierra una sesión.
+     */
+    public FtpConnectionPool(OutputStream log, int maxIdlePerKey, long keepaliveMillis, long idleTimeoutMillis) {
+        this.log = log;
+        this.maxIdlePerKey = Math.max(0, maxIdlePerKey);
+        this.keepaliveMillis = Math.max(1, keepaliveMillis);
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        keepalive = new Thread(this::keepAlive, "ftp-keepalive");
+        keepalive.setDaemon(true);
+        keepalive.start();
+    }
+
+    /**
+     * Presta una sesión autenticada y en modo binario contra el servidor. Si
+     * hay una libre y sigue viva se reutiliza; si no, se abre una nueva. La
+     * sesión es exclusiva de quien la pide hasta que la devuelve con release o
+     * la descarta con invalidate.
+     *
+     * @param server Dirección del servidor FTP.
+     * @param port   Puerto del servidor FTP.
+     * @param user   Nombre de usuario.
+     * @param pass   Contraseña, que solo se usa si hay que abrir una sesión.
+     * @return Sesión lista para usar.
+     * @throws IOException Si no se puede conectar o se rechaza el usuario.
+     */
+    public ClientFtpProtocolService borrow(String server, int port, String user, String pass) throws IOException {
+        String key = user + "@" + server + ":" + port;
+        Entry entry;
+        while ((entry = takeIdle(key)) != null) {
+            if (isAlive(entry)) {
+                synchronized (this) {
+                    reused++;
+                }
+                borrowed.put(entry.session, entry);
+                return entry.session;
+            }
+            discard(entry);
+        }
+        entry = open(key, server, port, user, pass);
+        borrowed.put(entry.session, entry);
+        return entry.session;
+    }
+
+    /**
+     * Devuelve una sesión prestada. Si su última transferencia no ha terminado,
+     * tiene abierto un canal de datos sin usar o se ha desconectado, se cierra;
+     * si no, se vuelve a su directorio y configuración iniciales y queda libre
+     * para el siguiente que la pida.
+     *
+     * @param session Sesión obtenida con borrow.
+     */
+    public void release(ClientFtpProtocolService session) {
+        Entry entry = borrowed.remove(session);
+        if (entry == null) {
+            return;
+        }
+        if (!session.isConnected() || session.hasPendingDataChannel()) {
+            discard(entry);
+            return;
+        }
+        try {
+            if (!entry.homeDirectory.equals(session.getWorkingDirectory())
+                    && !ClientFtpProtocolService.await(session.sendCwd(entry.homeDirectory)).isPositiveCompletion()) {
+                discard(entry);
+                return;
+            }
+            session.resetOptions();
+        } catch (IOException e) {
+            discard(entry);
+            return;
+        }
+        synchronized (this) {
+            Deque<Entry> free = idle.computeIfAbsent(entry.key, key -> new ArrayDeque<>());
+            if (!closed && free.size() < maxIdlePerKey) {
+                entry.idleSince = System.currentTimeMillis();
+                entry.lastCheck = entry.idleSince;
+                free.addFirst(entry);
+                return;
+            }
+        }
+        discard(entry);
+    }
+
+    /**
+     * Descarta y cierra una sesión prestada que ha quedado en mal estado.
+     *
+     * @param session Sesión obtenida con borrow.
+     */
+    public void invalidate(ClientFtpProtocolService session) {
+        Entry entry = borrowed.remove(session);
+        if (entry != null) {
+            discard(entry);
+        }
+    }
+
+    /**
+     * Cierra todas las sesiones libres y detiene los NOOP. Las sesiones
+     * prestadas se cierran al devolverlas.
+     */
+    @Override
+    public void close() {
+        List<Entry> entries = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            for (Deque<Entry> free : idle.values()) {
+                entries.addAll(free);
+            }
+            idle.clear();
+        }
+        keepalive.interrupt();
+        for (Entry entry : entries) {
+            discard(entry);
+        }
+    }
+
+    /**
+     * @return Sesiones abiertas por el pool.
+     */
+    public synchronized long getCreated() {
+        return created;
+    }
+
+    /**
+     * @return Préstamos atendidos con una sesión ya abierta.
+     */
+    public synchronized long getReused() {
+        return reused;
+    }
+
+    /**
+     * @return Sesiones cerradas por caídas, fallos de NOOP, exceso de libres o
+     *         inactividad.
+     */
+    public synchronized long getEvicted() {
+        return evicted;
+    }
+
+    /**
+     * @return Sesiones libres en este momento.
+     */
+    public synchronized int getIdleCount() {
+        int count = 0;
+        for (Deque<Entry> free : idle.values()) {
+            count += free.size();
+        }
+        return count;
+    }
+
+    private synchronized Entry takeIdle(String key) {
+        if (closed) {
+            return null;
+        }
+        Deque<Entry> free = idle.get(key);
+        return free != null ? free.pollFirst() : null;
+    }
+
+    /**
+     * Comprueba que una sesión sigue conectada y, si lleva libre un rato, que
+     * responde a NOOP.
+     */
+    private boolean isAlive(Entry entry) {
+        if (!entry.session.isConnected()) {
+            return false;
+        }
+        if (System.currentTimeMillis() - entry.lastCheck < VALIDATE_AFTER_MILLIS) {
+            return true;
+        }
+        try {
+            return ClientFtpProtocolService.await(entry.session.sendNoop()).isPositiveCompletion();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Abre una sesión autenticada y en modo binario, y anota su directorio
+     * inicial.
+     */
+    private Entry open(String key, String server, int port, String user, String pass) throws IOException {
+        ClientFtpProtocolService session = new ClientFtpProtocolService(log);
+        try {
+            session.connectTo(server, port);
+            FtpReply login = ClientFtpProtocolService.await(session.authenticate(user, pass));
+            if (login.getCode() != 230) {
+                throw new IOException("Error de autenticación en " + server + ": " + login);
+            }
+            session.sendType("I");
+            Entry entry = new Entry(key, session, session.getWorkingDirectory());
+            synchronized (this) {
+                created++;
+            }
+            return entry;
+        } catch (IOException e) {
+            close(session);
+            throw e;
+        }
+    }
+
+    private void discard(Entry entry) {
+        synchronized (this) {
+            evicted++;
+        }
+        close(entry.session);
+    }
+
+    private static void close(ClientFtpProtocolService session) {
+        try {
+            if (session.isConnected()) {
+                session.close();
+            }
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Bucle del hilo de mantenimiento: cierra las sesiones libres caducadas y
+     * envía NOOP a las que llevan libres un intervalo. Mientras se comprueba,
+     * la sesión se saca de las libres para que nadie la tome.
+     */
+    private void keepAlive() {
+        while (true) {
+            try {
+                Thread.sleep(Math.min(keepaliveMillis, VALIDATE_AFTER_MILLIS));
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            List<Entry> expired = new ArrayList<>();
+            List<Entry> due = new ArrayList<>();
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                for (Deque<Entry> free : idle.values()) {
+                    for (Iterator<Entry> it = free.iterator(); it.hasNext();) {
+                        Entry entry = it.next();
+                        if (now - entry.idleSince >= idleTimeoutMillis || !entry.session.isConnected()) {
+                            it.remove();
+                            expired.add(entry);
+                        } else if (now - entry.lastCheck >= keepaliveMillis) {
+                            it.remove();
+                            due.add(entry);
+                        }
+                    }
+                }
+            }
+            for (Entry entry : expired) {
+                discard(entry);
+            }
+            for (Entry entry : due) {
+                boolean alive;
+                try {
+                    alive = ClientFtpProtocolService.await(entry.session.sendNoop()).isPositiveCompletion();
+                } catch (IOException e) {
+                    alive = false;
+                }
+                boolean kept = false;
+                if (alive) {
+                    synchronized (this) {
+                        Deque<Entry> free = idle.computeIfAbsent(entry.key, key -> new ArrayDeque<>());
+                        if (!closed && free.size() < maxIdlePerKey) {
+                            // Un NOOP no cuenta como uso: la caducidad sigue contando desde la devolución.
+                            entry.lastCheck = System.currentTimeMillis();
+                            free.addLast(entry);
+                            kept = true;
+                        }
+                    }
+                }
+                if (!kept) {
+                    discard(entry);
+                }
+            }
+        }
+    }
+}
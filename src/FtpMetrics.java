@@ -0,0 +1,404 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * La clase FtpMetrics recoge las métricas de las sesiones FTP: bytes
+ * descargados y subidos, transferencias y su duración, tiempo hasta el primer
+ * byte, latencia de EPSV/PASV hasta conectar el canal de datos, tiempo de
+ * respuesta de los comandos y errores. De las descargas en MODE Z se cuentan
+ * los bytes comprimidos recibidos y los que resultaron al descomprimirlos.
+ * Todos los contadores son LongAdder y los histogramas LatencyHistogram, así
+ * que registrar una medida no bloquea y apenas compite entre hilos. Solo se
+ * registra al terminar cada comando o transferencia, nunca dentro del bucle
+ * de copia.
+ * Cada sesión tiene sus propias métricas, que además se suman a las globales
+ * de shared(). Las globales se publican por JMX como
+ * "ftpclient:type=FtpMetrics,name=global"; las de una sesión se pueden
+ * publicar con register.
+ *
+ * @author RoberRey
+ */
+public class FtpMetrics implements FtpMetricsMBean {
+
+    private static final FtpMetrics SHARED = createShared();
+
+    private final FtpMetrics parent;
+    private final LongAdder bytesDownloaded = new LongAdder();
+    private final LongAdder bytesUploaded = new LongAdder();
+    private final LongAdder compressedBytesReceived = new LongAdder();
+    private final LongAdder bytesInflated = new LongAdder();
+    private final LongAdder transfers = new LongAdder();
+    private final LongAdder transferErrors = new LongAdder();
+    private final LongAdder commandErrors = new LongAdder();
+    private final LongAdder dataConnectionErrors = new LongAdder();
+    private final LatencyHistogram commandRtt = new LatencyHistogram();
+    private final LatencyHistogram pasvSetup = new LatencyHistogram();
+    private final LatencyHistogram timeToFirstByte = new LatencyHistogram();
+    private final LatencyHistogram transferDuration = new LatencyHistogram();
+    private ObjectName registeredName;
+
+    /**
+     * Crea unas métricas independientes.
+     */
+    public FtpMetrics() {
+        this(null);
+    }
+
+    /**
+     * Crea unas métricas que suman también cada medida a las indicadas, por
+     * ejemplo las de una sesión a las globales.
+     *
+     * @param parent Métricas que acumulan estas o null.
+     */
+    public FtpMetrics(FtpMetrics parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * @return Métricas globales de todas las sesiones del proceso.
+     */
+    public static FtpMetrics shared() {
+        return SHARED;
+    }
+
+    private static FtpMetrics createShared() {
+        FtpMetrics metrics = new FtpMetrics();
+        try {
+            metrics.register("global");
+        } catch (JMException | SecurityException e) {
+            // Sin JMX las métricas siguen disponibles con snapshot().
+        }
+        return metrics;
+    }
+
+    /**
+     * Publica estas métricas en el servidor de MBeans de la plataforma.
+     *
+     * @param name Nombre que las distingue, por ejemplo el servidor y el usuario.
+     * @throws JMException Si el nombre no es válido o ya está registrado.
+     */
+    public synchronized void register(String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName("ftpclient:type=FtpMetrics,name=" + ObjectName.quote(name));
+        server.registerMBean(this, objectName);
+        registeredName = objectName;
+    }
+
+    /**
+     * Retira estas métricas del servidor de MBeans, si se publicaron.
+     */
+    public synchronized void unregister() {
+        if (registeredName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+        } catch (JMException e) {
+        }
+        registeredName = null;
+    }
+
+    /**
+     * Registra una transferencia terminada.
+     *
+     * @param upload true si ha sido una subida.
+     * @param stats  Estadísticas de la transferencia.
+     */
+    public void recordTransfer(boolean upload, TransferStats stats) {
+        (upload ? bytesUploaded : bytesDownloaded).add(stats.getBytes());
+        if (stats.getCompressedBytes() >= 0) {
+            compressedBytesReceived.add(stats.getCompressedBytes());
+            bytesInflated.add(stats.getBytes());
+        }
+        transfers.increment();
+        transferDuration.record(stats.getNanos());
+        if (stats.getFirstByteNanos() >= 0) {
+            timeToFirstByte.record(stats.getFirstByteNanos());
+        }
+        if (parent != null) {
+            parent.recordTransfer(upload, stats);
+        }
+    }
+
+    /**
+     * Registra una transferencia que ha fallado.
+     */
+    public void recordTransferError() {
+        transferErrors.increment();
+        if (parent != null) {
+            parent.recordTransferError();
+        }
+    }
+
+    /**
+     * Registra el tiempo entre el envío de un comando y su respuesta final.
+     *
+     * @param nanos Tiempo de respuesta en nanosegundos.
+     */
+    public void recordCommand(long nanos) {
+        commandRtt.record(nanos);
+        if (parent != null) {
+            parent.recordCommand(nanos);
+        }
+    }
+
+    /**
+     * Registra una respuesta de error (4xx o 5xx) del servidor.
+     */
+    public void recordCommandError() {
+        commandErrors.increment();
+        if (parent != null) {
+            parent.recordCommandError();
+        }
+    }
+
+    /**
+     * Registra el tiempo desde el envío de EPSV/PASV hasta conectar el canal de
+     * datos.
+     *
+     * @param nanos Latencia en nanosegundos.
+     */
+    public void recordPasvSetup(long nanos) {
+        pasvSetup.record(nanos);
+        if (parent != null) {
+            parent.recordPasvSetup(nanos);
+        }
+    }
+
+    /**
+     * Registra un fallo al abrir el canal de datos.
+     */
+    public void recordDataConnectionError() {
+        dataConnectionErrors.increment();
+        if (parent != null) {
+            parent.recordDataConnectionError();
+        }
+    }
+
+    /**
+     * Toma una foto de todas las métricas. Los contadores se leen uno a uno, así
+     * que con tráfico en curso puede no ser exactamente simultánea.
+     *
+     * @return Valores actuales.
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    @Override
+    public long getBytesDownloaded() {
+        return bytesDownloaded.sum();
+    }
+
+    @Override
+    public long getBytesUploaded() {
+        return bytesUploaded.sum();
+    }
+
+    @Override
+    public long getCompressedBytesReceived() {
+        return compressedBytesReceived.sum();
+    }
+
+    @Override
+    public long getBytesInflated() {
+        return bytesInflated.sum();
+    }
+
+    @Override
+    public long getTransfers() {
+        return transfers.sum();
+    }
+
+    @Override
+    public long getTransferErrors() {
+        return transferErrors.sum();
+    }
+
+    @Override
+    public long getCommandErrors() {
+        return commandErrors.sum();
+    }
+
+    @Override
+    public long getDataConnectionErrors() {
+        return dataConnectionErrors.sum();
+    }
+
+    @Override
+    public long getCommands() {
+        return commandRtt.snapshot().getCount();
+    }
+
+    @Override
+    public long getCommandRttP50Micros() {
+        return commandRtt.snapshot().getP50Micros();
+    }
+
+    @Override
+    public long getCommandRttP99Micros() {
+        return commandRtt.snapshot().getP99Micros();
+    }
+
+    @Override
+    public long getPasvSetupP50Micros() {
+        return pasvSetup.snapshot().getP50Micros();
+    }
+
+    @Override
+    public long getPasvSetupP99Micros() {
+        return pasvSetup.snapshot().getP99Micros();
+    }
+
+    @Override
+    public long getTimeToFirstByteP50Micros() {
+        return timeToFirstByte.snapshot().getP50Micros();
+    }
+
+    @Override
+    public long getTimeToFirstByteP99Micros() {
+        return timeToFirstByte.snapshot().getP99Micros();
+    }
+
+    @Override
+    public long getTransferDurationP50Micros() {
+        return transferDuration.snapshot().getP50Micros();
+    }
+
+    @Override
+    public long getTransferDurationP99Micros() {
+        return transferDuration.snapshot().getP99Micros();
+    }
+
+    /**
+     * Foto inmutable de unas FtpMetrics.
+     */
+    public static final class Snapshot {
+        private final long bytesDownloaded;
+        private final long bytesUploaded;
+        private final long compressedBytesReceived;
+        private final long bytesInflated;
+        private final long transfers;
+        private final long transferErrors;
+        private final long commandErrors;
+        private final long dataConnectionErrors;
+        private final LatencyHistogram.Snapshot commandRtt;
+        private final LatencyHistogram.Snapshot pasvSetup;
+        private final LatencyHistogram.Snapshot timeToFirstByte;
+        private final LatencyHistogram.Snapshot transferDuration;
+
+        private Snapshot(FtpMetrics metrics) {
+            bytesDownloaded = metrics.bytesDownloaded.sum();
+            bytesUploaded = metrics.bytesUploaded.sum();
+            compressedBytesReceived = metrics.compressedBytesReceived.sum();
+            bytesInflated = metrics.bytesInflated.sum();
+            transfers = metrics.transfers.sum();
+            transferErrors = metrics.transferErrors.sum();
+            commandErrors = metrics.commandErrors.sum();
+            dataConnectionErrors = metrics.dataConnectionErrors.sum();
+            commandRtt = metrics.commandRtt.snapshot();
+            pasvSetup = metrics.pasvSetup.snapshot();
+            timeToFirstByte = metrics.timeToFirstByte.snapshot();
+            transferDuration = metrics.transferDuration.snapshot();
+        }
+
+        /**
+         * @return Bytes recibidos por el canal de datos, incluidos los listados.
+         */
+        public long getBytesDownloaded() {
+            return bytesDownloaded;
+        }
+
+        /**
+         * @return Bytes enviados por el canal de datos.
+         */
+        public long getBytesUploaded() {
+            return bytesUploaded;
+        }
+
+        /**
+         * @return Bytes recibidos comprimidos en las descargas en MODE Z.
+         */
+        public long getCompressedBytesReceived() {
+            return compressedBytesReceived;
+        }
+
+        /**
+         * @return Bytes obtenidos al descomprimir las descargas en MODE Z.
+         */
+        public long getBytesInflated() {
+            return bytesInflated;
+        }
+
+        /**
+         * @return Transferencias terminadas sin error.
+         */
+        public long getTransfers() {
+            return transfers;
+        }
+
+        /**
+         * @return Transferencias que han fallado.
+         */
+        public long getTransferErrors() {
+            return transferErrors;
+        }
+
+        /**
+         * @return Respuestas 4xx y 5xx del servidor.
+         */
+        public long getCommandErrors() {
+            return commandErrors;
+        }
+
+        /**
+         * @return Fallos al abrir el canal de datos.
+         */
+        public long getDataConnectionErrors() {
+            return dataConnectionErrors;
+        }
+
+        /**
+         * @return Tiempo de respuesta de los comandos sin transferencia.
+         */
+        public LatencyHistogram.Snapshot getCommandRtt() {
+            return commandRtt;
+        }
+
+        /**
+         * @return Tiempo desde EPSV/PASV hasta conectar el canal de datos.
+         */
+        public LatencyHistogram.Snapshot getPasvSetup() {
+            return pasvSetup;
+        }
+
+        /**
+         * @return Tiempo hasta recibir el primer byte de cada descarga.
+         */
+        public LatencyHistogram.Snapshot getTimeToFirstByte() {
+            return timeToFirstByte;
+        }
+
+        /**
+         * @return Duración de las transferencias.
+         */
+        public LatencyHistogram.Snapshot getTransferDuration() {
+            return transferDuration;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d transferencias (%d bytes recibidos, %d enviados), errores: %d de "
+                    + "transferencia, %d de comando, %d de conexión de datos%n"
+                    + "  MODE Z:          %d bytes comprimidos, %d descomprimidos%n"
+                    + "  comandos:        %s%n  EPSV/PASV:       %s%n  primer byte:     %s%n"
+                    + "  transferencias:  %s",
+                    transfers, bytesDownloaded, bytesUploaded, transferErrors, commandErrors,
+                    dataConnectionErrors, compressedBytesReceived, bytesInflated, commandRtt, pasvSetup,
+                    timeToFirstByte, transferDuration);
+        }
+    }
+}
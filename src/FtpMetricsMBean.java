@@ -0,0 +1,43 @@
+/**
+ * Interfaz de gestión de FtpMetrics, con los atributos que se publican por JMX
+ * (por ejemplo, en JConsole o VisualVM). Las latencias se dan en
+ * microsegundos.
+ *
+ * @author RoberRey
+ */
+public interface FtpMetricsMBean {
+
+    long getBytesDownloaded();
+
+    long getBytesUploaded();
+
+    long getCompressedBytesReceived();
+
+    long getBytesInflated();
+
+    long getTransfers();
+
+    long getTransferErrors();
+
+    long getCommandErrors();
+
+    long getDataConnectionErrors();
+
+    long getCommands();
+
+    long getCommandRttP50Micros();
+
+    long getCommandRttP99Micros();
+
+    long getPasvSetupP50Micros();
+
+    long getPasvSetupP99Micros();
+
+    long getTimeToFirstByteP50Micros();
+
+    long getTimeToFirstByteP99Micros();
+
+    long getTransferDurationP50Micros();
+
+    long getTransferDurationP99Micros();
+}
@@ -0,0 +1,250 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * La clase FtpReactor atiende los canales de control de muchas sesiones FTP con
+ * un único hilo. Todos los SocketChannel se registran en el mismo Selector; al
+ * llegar datos se leen en un ByteBuffer directo compartido y se entregan al
+ * Handler de la sesión, que los decodifica de forma incremental con su
+ * FtpReplyDecoder.
+ * Los comandos se encolan desde cualquier hilo y los escribe el propio hilo del
+ * reactor, por lo que ninguna operación bloquea la atención al resto de
+ * sesiones. Los Handler se ejecutan en el hilo del reactor y no deben
+ * bloquearse.
+ *
+ * @author RoberRey
+ */
+public final class FtpReactor implements Runnable, Closeable {
+
+    /**
+     * Recibe los eventos de un canal de control registrado en el reactor.
+     */
+    public interface Handler {
+
+        /**
+         * Se invoca con los bytes recibidos por el canal. El buffer es compartido
+         * entre sesiones: se deben consumir todos sus bytes durante la llamada.
+         *
+         * @param data Bytes recibidos del servidor.
+         * @throws IOException Si falla el tratamiento; el reactor cierra la
+         *                     conexión.
+         */
+        void onData(ByteBuffer data) throws IOException;
+
+        /**
+         * Se invoca una única vez cuando la conexión se cierra, por cualquier
+         * motivo.
+         *
+         * @param cause Error que ha provocado el cierre, o null si se ha
+         *              cerrado de forma ordenada.
+         */
+        void onClosed(IOException cause);
+    }
+
+    /**
+     * Estado de un canal de control registrado en el reactor.
+     */
+    public static final class Connection {
+        private final SocketChannel channel;
+        private final Handler handler;
+        private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+        private SelectionKey key;
+
+        private Connection(SocketChannel channel, Handler handler) {
+            this.channel = channel;
+            this.handler = handler;
+        }
+    }
+
+    private final Selector selector;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * Crea el reactor y arranca su hilo.
+     *
+     * @throws IOException Si no se puede abrir el Selector.
+     */
+    public FtpReactor() throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, "ftp-reactor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Registra un canal de control ya conectado. El canal pasa a modo no
+     * bloqueante.
+     *
+     * @param channel Canal de control conectado al servidor.
+     * @param handler Receptor de las respuestas del canal.
+     * @return Conexión con la que enviar comandos o cerrar el canal.
+     * @throws IOException Si no se puede cambiar el modo del canal.
+     */
+    public Connection register(SocketChannel channel, Handler handler) throws IOException {
+        channel.configureBlocking(false);
+        Connection connection = new Connection(channel, handler);
+        execute(() -> {
+            try {
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException e) {
+                closeConnection(connection, e);
+            }
+        });
+        return connection;
+    }
+
+    /**
+     * Encola datos para enviarlos por el canal de control. Se puede llamar
+     * desde cualquier hilo.
+     *
+     * @param connection Conexión destino.
+     * @param data       Bytes a enviar.
+     */
+    public void send(Connection connection, byte[] data) {
+        connection.outbound.add(ByteBuffer.wrap(data));
+        execute(() -> flush(connection));
+    }
+
+    /**
+     * Cierra un canal de control. El Handler recibe onClosed desde el hilo del
+     * reactor.
+     *
+     * @param connection Conexión a cerrar.
+     */
+    public void close(Connection connection) {
+        execute(() -> closeConnection(connection, null));
+    }
+
+    /**
+     * Detiene el reactor y cierra todos los canales registrados.
+     */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Bucle del reactor: ejecuta las tareas encoladas y atiende los canales
+     * listos para leer o escribir.
+     */
+    @Override
+    public void run() {
+        IOException failure = null;
+        try {
+            while (running) {
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    Connection connection = (Connection) key.attachment();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isReadable()) {
+                        read(connection);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        flush(connection);
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            // Sin Selector no se puede atender ninguna conexión: todas se cierran con este error.
+            failure = e;
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                closeConnection((Connection) key.attachment(), failure);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Encola una tarea para el hilo del reactor y lo despierta.
+     */
+    private void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Lee los datos disponibles de un canal y los entrega a su Handler.
+     */
+    private void read(Connection connection) {
+        try {
+            readBuffer.clear();
+            int read = connection.channel.read(readBuffer);
+            if (read == -1) {
+                closeConnection(connection, null);
+                return;
+            }
+            readBuffer.flip();
+            connection.handler.onData(readBuffer);
+        } catch (IOException e) {
+            closeConnection(connection, e);
+        }
+    }
+
+    /**
+     * Escribe los datos pendientes de un canal. Si el socket no admite más, se
+     * espera a que vuelva a estar listo para escritura.
+     */
+    private void flush(Connection connection) {
+        if (connection.key == null || !connection.key.isValid()) {
+            return;
+        }
+        try {
+            ByteBuffer buffer;
+            while ((buffer = connection.outbound.peek()) != null) {
+                connection.channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    connection.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                connection.outbound.poll();
+            }
+            connection.key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            closeConnection(connection, e);
+        }
+    }
+
+    /**
+     * Cierra el canal y avisa al Handler, con el error que lo provoca, si no
+     * estaba ya cerrado.
+     */
+    private void closeConnection(Connection connection, IOException cause) {
+        if (!connection.channel.isOpen()) {
+            return;
+        }
+        if (connection.key != null) {
+            connection.key.cancel();
+        }
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+        }
+        connection.handler.onClosed(cause);
+    }
+}
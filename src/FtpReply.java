@@ -0,0 +1,105 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * La clase FtpReply representa una respuesta del servidor FTP a un
+ * comando: su código de tres dígitos y el texto completo, que en las respuestas
+ * multilínea ("nnn-" ... "nnn ") incluye todas las líneas separadas por "\n".
+ * Cuando se crea a partir de los bytes recibidos, el texto solo se decodifica
+ * si alguien lo pide.
+ *
+ * @author RoberRey
+ */
+public class FtpReply {
+
+    private final int code;
+    private byte[] raw;
+    private String text;
+
+    /**
+     * Crea una instancia de FtpReply.
+     *
+     * @param code Código de respuesta.
+     * @param text Texto completo de la respuesta, código incluido.
+     */
+    public FtpReply(int code, String text) {
+        this.code = code;
+        this.text = text;
+    }
+
+    /**
+     * Crea una instancia de FtpReply a partir de los bytes recibidos.
+     *
+     * @param code Código de respuesta.
+     * @param raw  Bytes de la respuesta, código incluido, con las líneas
+     *             separadas por '\n'.
+     */
+    public FtpReply(int code, byte[] raw) {
+        this.code = code;
+        this.raw = raw;
+    }
+
+    /**
+     * @return Código de respuesta de tres dígitos.
+     */
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * @return Texto completo de la respuesta, código incluido.
+     */
+    public String getText() {
+        if (text == null) {
+            text = new String(raw, StandardCharsets.UTF_8);
+        }
+        return text;
+    }
+
+    /**
+     * @return Bytes de la respuesta, código incluido.
+     */
+    public byte[] getRaw() {
+        if (raw == null) {
+            raw = text.getBytes(StandardCharsets.UTF_8);
+        }
+        return raw;
+    }
+
+    /**
+     * Devuelve el texto de la última línea sin el código, que es donde los
+     * servidores ponen el valor de respuestas como SIZE o MDTM.
+     *
+     * @return Mensaje de la respuesta.
+     */
+    public String getMessage() {
+        String text = getText();
+        int lastLine = text.lastIndexOf('\n') + 1;
+        return text.length() > lastLine + 4 ? text.substring(lastLine + 4).trim() : "";
+    }
+
+    /**
+     * @return true si es una respuesta 2xx de comando completado.
+     */
+    public boolean isPositiveCompletion() {
+        return code >= 200 && code < 300;
+    }
+
+    /**
+     * @return true si es una respuesta 3xx que espera otro comando.
+     */
+    public boolean isPositiveIntermediate() {
+        return code >= 300 && code < 400;
+    }
+
+    /**
+     * @return true si es una respuesta de error 4xx o 5xx.
+     */
+    public boolean isError() {
+        return code >= 400;
+    }
+
+    @Override
+    public String toString() {
+        return getText();
+    }
+}
@@ -0,0 +1,226 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * La clase FtpReplyDecoder decodifica las respuestas del canal de control a
+ * partir de los bytes recibidos, sin BufferedReader ni expresiones regulares.
+ * Los bytes se acumulan en un buffer reutilizable; de cada línea se extrae el
+ * código de tres dígitos con aritmética sobre los bytes y se detectan las
+ * respuestas multilínea ("nnn-" ... "nnn "). Solo se crea un objeto por
+ * respuesta completa, no por línea.
+ * Los datos pueden llegar troceados de cualquier forma: una línea partida
+ * entre dos lecturas se completa en la siguiente llamada a feed.
+ *
+ * @author RoberRey
+ */
+public class FtpReplyDecoder {
+
+    /**
+     * Recibe las líneas y respuestas decodificadas.
+     */
+    public interface Listener {
+
+        /**
+         * Se invoca por cada línea recibida. Los bytes solo son válidos durante
+         * la llamada.
+         *
+         * @param buffer Buffer con la línea, terminada en '\n' y sin '\r'.
+         * @param offset Posición de inicio de la línea.
+         * @param length Longitud de la línea, '\n' incluido.
+         * @throws IOException Si falla el tratamiento de la línea.
+         */
+        void onLine(byte[] buffer, int offset, int length) throws IOException;
+
+        /**
+         * Se invoca al completarse una respuesta, preliminar (1xx) o final.
+         *
+         * @param reply Respuesta completa.
+         * @throws IOException Si falla el tratamiento de la respuesta.
+         */
+        void onReply(FtpReply reply) throws IOException;
+    }
+
+    private final Listener listener;
+    // Líneas de la respuesta en curso, cada una terminada en '\n'.
+    private byte[] buffer = new byte[512];
+    private int length;
+    // Inicio de la línea en curso dentro del buffer.
+    private int lineStart;
+    // Código de la respuesta multilínea en curso o -1 si no hay ninguna.
+    private int multiLineCode = -1;
+
+    /**
+     * Crea una instancia de FtpReplyDecoder.
+     *
+     * @param listener Receptor de las líneas y respuestas decodificadas.
+     */
+    public FtpReplyDecoder(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Decodifica los bytes pendientes de un ByteBuffer, que puede ser directo.
+     *
+     * @param source Bytes recibidos; se consumen todos.
+     * @throws IOException Si el Listener falla.
+     */
+    public void feed(ByteBuffer source) throws IOException {
+        while (source.hasRemaining()) {
+            accept(source.get());
+        }
+    }
+
+    /**
+     * Decodifica un bloque de bytes recibidos.
+     *
+     * @param source Array con los bytes.
+     * @param offset Posición del primer byte.
+     * @param count  Número de bytes.
+     * @throws IOException Si el Listener falla.
+     */
+    public void feed(byte[] source, int offset, int count) throws IOException {
+        for (int i = offset; i < offset + count; i++) {
+            accept(source[i]);
+        }
+    }
+
+    /**
+     * Añade un byte a la línea en curso y la procesa al llegar el '\n'.
+     */
+    private void accept(byte b) throws IOException {
+        if (b == '\r') {
+            return;
+        }
+        if (length == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        buffer[length++] = b;
+        if (b == '\n') {
+            endOfLine();
+        }
+    }
+
+    /**
+     * Procesa la línea completa que empieza en lineStart.
+     */
+    private void endOfLine() throws IOException {
+        int start = lineStart;
+        int lineLength = length - start;
+        listener.onLine(buffer, start, lineLength);
+        int code = parseCode(buffer, start, lineLength - 1);
+        char separator = lineLength > 4 ? (char) buffer[start + 3] : ' ';
+        if (multiLineCode >= 0) {
+            // Dentro de una respuesta multilínea solo la termina "nnn " con su código.
+            if (code != multiLineCode || separator != ' ') {
+                lineStart = length;
+                return;
+            }
+        } else if (code >= 0 && separator == '-') {
+            multiLineCode = code;
+            lineStart = length;
+            return;
+        }
+        if (code >= 0) {
+            listener.onReply(new FtpReply(code, Arrays.copyOf(buffer, length - 1)));
+        }
+        multiLineCode = -1;
+        length = 0;
+        lineStart = 0;
+    }
+
+    /**
+     * Obtiene el código de tres dígitos del principio de una línea.
+     *
+     * @return Código numérico o -1 si la línea no empieza por tres dígitos.
+     */
+    private static int parseCode(byte[] line, int offset, int length) {
+        if (length < 3) {
+            return -1;
+        }
+        int code = 0;
+        for (int i = offset; i < offset + 3; i++) {
+            int digit = line[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            code = code * 10 + digit;
+        }
+        return code;
+    }
+
+    /**
+     * Extrae la dirección del canal de datos de una respuesta 227 con el formato
+     * "227 Entering Passive Mode (h1,h2,h3,h4,p1,p2)." recorriendo sus bytes.
+     *
+     * @param reply Respuesta 227 del servidor.
+     * @return InetSocketAddress con la IP y puerto para el canal de datos.
+     * @throws IOException Si la respuesta no está en el formato esperado.
+     */
+    public static InetSocketAddress parsePasv(FtpReply reply) throws IOException {
+        byte[] raw = reply.getRaw();
+        int i = 0;
+        while (i < raw.length && raw[i] != '(') {
+            i++;
+        }
+        int[] values = new int[6];
+        int count = 0;
+        int value = -1;
+        for (i++; i < raw.length && count < 6; i++) {
+            byte b = raw[i];
+            if (b >= '0' && b <= '9') {
+                value = (value < 0 ? 0 : value * 10) + (b - '0');
+                if (value > 255) {
+                    break;
+                }
+            } else if ((b == ',' || b == ')') && value >= 0) {
+                values[count++] = value;
+                value = -1;
+                if (b == ')') {
+                    break;
+                }
+            } else {
+                break;
+            }
+        }
+        if (count != 6) {
+            throw new IOException("Respuesta PASV mal formateada: " + reply);
+        }
+        byte[] address = { (byte) values[0], (byte) values[1], (byte) values[2], (byte) values[3] };
+        return new InetSocketAddress(InetAddress.getByAddress(address), values[4] * 256 + values[5]);
+    }
+
+    /**
+     * Extrae el puerto del canal de datos de una respuesta 229 con el formato
+     * "229 Entering Extended Passive Mode (|||puerto|)". El carácter delimitador
+     * es el que sigue al paréntesis, normalmente '|'.
+     *
+     * @param reply Respuesta 229 del servidor.
+     * @return Puerto del canal de datos.
+     * @throws IOException Si la respuesta no está en el formato esperado.
+     */
+    public static int parseEpsv(FtpReply reply) throws IOException {
+        byte[] raw = reply.getRaw();
+        int i = 0;
+        while (i < raw.length && raw[i] != '(') {
+            i++;
+        }
+        // Tras el paréntesis van el delimitador tres veces, el puerto y el delimitador.
+        if (i + 4 < raw.length) {
+            byte delimiter = raw[i + 1];
+            if (raw[i + 2] == delimiter && raw[i + 3] == delimiter) {
+                int port = 0;
+                int digits = 0;
+                for (i += 4; i < raw.length && raw[i] >= '0' && raw[i] <= '9' && digits < 5; i++, digits++) {
+                    port = port * 10 + (raw[i] - '0');
+                }
+                if (digits > 0 && i < raw.length && raw[i] == delimiter && port <= 65535) {
+                    return port;
+                }
+            }
+        }
+        throw new IOException("Respuesta EPSV mal formateada: " + reply);
+    }
+}
@@ -0,0 +1,339 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * La clase FtpSessionPool reparte las transferencias de un mismo cliente lógico
+ * entre varias sesiones FTP contra el mismo servidor, cada una con su canal de
+ * control y su canal de datos. Así, en lugar de esperar a que termine cada
+ * transferencia para empezar la siguiente, se hacen hasta K a la vez.
+ * Cada sesión la atiende un trabajador que, una vez que el límite de
+ * conexiones del servidor (HostConnectionLimits) le deja reservar una, saca
+ * tareas de una FairTaskQueue por turnos entre las distintas colas. La
+ * conexión se abre con la primera tarea y, si se cae o una tarea falla
+ * dejando el canal de datos ocupado, se cierra y se vuelve a abrir para la
+ * siguiente. Los trabajadores que no consiguen conexión se quedan
+ * esperando sin coger tareas.
+ * Si se le pasa un FtpConnectionPool, las sesiones se toman de él y se le
+ * devuelven al cerrar, de modo que un pool creado para un trabajo corto
+ * reutiliza las sesiones ya autenticadas del anterior.
+ *
+ * @author RoberRey
+ */
+public class FtpSessionPool implements Closeable {
+
+    /**
+     * Tarea que se ejecuta con una sesión del pool ya autenticada y en modo
+     * binario. Mientras dura la tarea, la sesión es exclusiva de ella.
+     *
+     * @param <T> Tipo del resultado.
+     */
+    public interface SessionTask<T> {
+
+        /**
+         * Ejecuta la tarea.
+         *
+         * @param session Sesión asignada.
+         * @return Resultado de la tarea.
+         * @throws IOException Si falla la tarea.
+         */
+        T run(ClientFtpProtocolService session) throws IOException;
+    }
+
+    /**
+     * Tarea encolada junto con el future de su resultado.
+     */
+    private static final class Job {
+        private final SessionTask<?> task;
+        private final CompletableFuture<Object> result = new CompletableFuture<>();
+
+        private Job(SessionTask<?> task) {
+            this.task = task;
+        }
+    }
+
+    // Marca que indica a un trabajador que debe terminar.
+    private static final Job STOP = new Job(session -> null);
+
+    private final String server;
+    private final int port;
+    private final String user;
+    private final String pass;
+    private final OutputStream log;
+    private final HostConnectionLimits limits;
+    // Sesiones reutilizables, o null para abrir y cerrar cada una.
+    private final FtpConnectionPool connections;
+    private final FairTaskQueue<Job> queue = new FairTaskQueue<>();
+    private final List<Future<?>> workers = new ArrayList<>();
+    // Trabajadores esperando a que el límite del servidor les deje conectar.
+    private final Set<Thread> waitingForConnection = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+
+    /**
+     * Crea un pool con los límites de conexión compartidos por defecto.
+     *
+     * @param server   Dirección del servidor FTP.
+     * @param port     Puerto del servidor FTP.
+     * @param user     Nombre de usuario.
+     * @param pass     Contraseña.
+     * @param sessions Número de sesiones en paralelo.
+     * @param log      OutputStream utilizado para registrar comandos y
+     *                 respuestas.
+     */
+    public FtpSessionPool(String server, int port, String user, String pass, int sessions,
+            OutputStream log) {
+        this(server, port, user, pass, sessions, log, HostConnectionLimits.shared());
+    }
+
+    /**
+     * Crea un pool que respeta los límites de conexión indicados.
+     *
+     * @param server   Dirección del servidor FTP.
+     * @param port     Puerto del servidor FTP.
+     * @param user     Nombre de usuario.
+     * @param pass     Contraseña.
+     * @param sessions Número de sesiones en paralelo.
+     * @param log      OutputStream utilizado para registrar comandos y
+     *                 respuestas.
+     * @param limits   Límites de conexiones por servidor.
+     */
+    public FtpSessionPool(String server, int port, String user, String pass, int sessions,
+            OutputStream log, HostConnectionLimits limits) {
+        this(server, port, user, pass, sessions, log, limits, null);
+    }
+
+    /**
+     * Crea un pool que toma sus sesiones de un FtpConnectionPool y se las
+     * devuelve al cerrar.
+     *
+     * @param server      Dirección del servidor FTP.
+     * @param port        Puerto del servidor FTP.
+     * @param user        Nombre de usuario.
+     * @param pass        Contraseña.
+     * @param sessions    Número de sesiones en paralelo.
+     * @param log         OutputStream utilizado para registrar comandos y
+     *                    respuestas; las sesiones del FtpConnectionPool usan el
+     *                    suyo.
+     * @param limits      Límites de conexiones por servidor.
+     * @param connections Sesiones reutilizables, o null para abrirlas y
+     *                    cerrarlas aquí.
+     */
+    public FtpSessionPool(String server, int port, String user, String pass, int sessions,
+            OutputStream log, HostConnectionLimits limits, FtpConnectionPool connections) {
+        this.server = server;
+        this.port = port;
+        this.user = user;
+        this.pass = pass;
+        this.log = log;
+        this.limits = limits;
+        this.connections = connections;
+        TransferExecutor executor = TransferExecutor.virtualThreads();
+        for (int i = 0; i < Math.max(1, sessions); i++) {
+            workers.add(executor.submit(this::work));
+        }
+    }
+
+    /**
+     * Encola una tarea en la cola indicada.
+     *
+     * @param <T>       Tipo del resultado.
+     * @param queueName Cola en la que se encola; las colas se atienden por
+     *                  turnos.
+     * @param task      Tarea a ejecutar con una sesión del pool.
+     * @return Future con el resultado de la tarea.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> submit(String queueName, SessionTask<T> task) {
+        Job job = new Job(task);
+        // Sincronizado con close() para que ninguna tarea quede encolada detrás de STOP.
+        synchronized (this) {
+            if (!closed) {
+                queue.put(queueName, job);
+                return (CompletableFuture<T>) job.result;
+            }
+        }
+        job.result.completeExceptionally(new IOException("El pool de sesiones está cerrado"));
+        return (CompletableFuture<T>) job.result;
+    }
+
+    /**
+     * Encola la descarga de un archivo remoto en un fichero local.
+     *
+     * @param queueName Cola en la que se encola la descarga.
+     * @param remote    Nombre del archivo remoto.
+     * @param target    Ruta del fichero local.
+     * @return Future con las estadísticas de la transferencia.
+     */
+    public CompletableFuture<TransferStats> submitRetr(String queueName, String remote, Path target) {
+        return submit(queueName, session -> {
+            session.sendPassv();
+            FtpReply reply = ClientFtpProtocolService.await(session.sendRetr(remote, target));
+            TransferStats stats = ClientFtpProtocolService.await(session.getLastTransfer());
+            if (reply.isError()) {
+                throw new IOException("Error al descargar " + remote + ": " + reply);
+            }
+            return stats;
+        });
+    }
+
+    /**
+     * Deja de aceptar tareas, falla las que no se han empezado, espera a las que
+     * están en curso y cierra todas las sesiones.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            failPending();
+            for (int i = 0; i < workers.size(); i++) {
+                queue.put("", STOP);
+            }
+        }
+        for (Thread waiting : waitingForConnection) {
+            waiting.interrupt();
+        }
+        for (Future<?> worker : workers) {
+            try {
+                worker.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+            }
+        }
+        // Los trabajadores que salieron esperando conexión no han recogido su STOP ni tareas.
+        failPending();
+    }
+
+    /**
+     * Falla las tareas que quedan en la cola sin empezar.
+     */
+    private void failPending() {
+        for (Job job : queue.drain()) {
+            if (job != STOP) {
+                job.result.completeExceptionally(new IOException("El pool de sesiones está cerrado"));
+            }
+        }
+    }
+
+    /**
+     * Bucle de un trabajador: reserva una conexión con el servidor y ejecuta
+     * tareas con su sesión, abriéndola cuando hace falta, hasta recibir STOP.
+     */
+    private void work() {
+        ClientFtpProtocolService session = null;
+        boolean reserved = false;
+        try {
+            while (true) {
+                if (!reserved) {
+                    reserveConnection();
+                    reserved = true;
+                }
+                Job job = queue.take();
+                if (job == STOP) {
+                    break;
+                }
+                try {
+                    if (session != null && !session.isConnected()) {
+                        closeSession(session);
+                        session = null;
+                    }
+                    if (session == null) {
+                        session = openSession();
+                    }
+                    job.result.complete(job.task.run(session));
+                } catch (IOException | RuntimeException e) {
+                    job.result.completeExceptionally(e);
+                    // Si la tarea dejó el canal de datos ocupado, el siguiente sendPassv() esperaría para siempre.
+                    if (session != null && (!session.isConnected() || session.hasPendingDataChannel())) {
+                        discardSession(session);
+                        session = null;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // El pool se ha cerrado mientras se esperaba.
+        } finally {
+            if (session != null) {
+                closeSession(session);
+            }
+            if (reserved) {
+                limits.release(server);
+            }
+        }
+    }
+
+    /**
+     * Espera a que el límite de conexiones del servidor permita abrir una más.
+     * close() interrumpe esta espera.
+     */
+    private void reserveConnection() throws InterruptedException {
+        Thread current = Thread.currentThread();
+        waitingForConnection.add(current);
+        try {
+            if (closed) {
+                throw new InterruptedException();
+            }
+            limits.acquire(server);
+        } finally {
+            waitingForConnection.remove(current);
+        }
+    }
+
+    /**
+     * Abre una sesión autenticada y en modo binario.
+     */
+    private ClientFtpProtocolService openSession() throws IOException {
+        if (connections != null) {
+            return connections.borrow(server, port, user, pass);
+        }
+        ClientFtpProtocolService session = new ClientFtpProtocolService(log);
+        try {
+            session.connectTo(server, port);
+            FtpReply login = ClientFtpProtocolService.await(session.authenticate(user, pass));
+            if (login.getCode() != 230) {
+                throw new IOException("Error de autenticación en " + server + ": " + login);
+            }
+            session.sendType("I");
+            return session;
+        } catch (IOException e) {
+            closeSession(session);
+            throw e;
+        }
+    }
+
+    /**
+     * Cierra una sesión que ha quedado en mal estado, sin devolverla al
+     * FtpConnectionPool.
+     */
+    private void discardSession(ClientFtpProtocolService session) {
+        if (connections != null) {
+            connections.invalidate(session);
+            return;
+        }
+        closeSession(session);
+    }
+
+    /**
+     * Cierra una sesión si sigue conectada, o la devuelve al FtpConnectionPool.
+     */
+    private void closeSession(ClientFtpProtocolService session) {
+        if (connections != null) {
+            connections.release(session);
+            return;
+        }
+        try {
+            if (session.isConnected()) {
+                session.close();
+            }
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,73 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * La clase HostConnectionLimits limita el número de conexiones de control que
+ * se abren a la vez contra un mismo servidor, sumando las de todos los pools
+ * que la comparten. Muchos servidores FTP rechazan a los clientes que superan
+ * un número de sesiones por IP, por lo que conviene no pasar de ese límite.
+ *
+ * @author RoberRey
+ */
+public class HostConnectionLimits {
+
+    private static final HostConnectionLimits SHARED = new HostConnectionLimits(8);
+
+    private final int defaultLimit;
+    private final Map<String, Integer> limits = new HashMap<>();
+    private final Map<String, Integer> open = new HashMap<>();
+
+    /**
+     * Crea una instancia de HostConnectionLimits.
+     *
+     * @param defaultLimit Límite de conexiones para los servidores sin límite
+     *                     propio.
+     */
+    public HostConnectionLimits(int defaultLimit) {
+        this.defaultLimit = defaultLimit;
+    }
+
+    /**
+     * Devuelve los límites compartidos por defecto, de 8 conexiones por servidor.
+     *
+     * @return Límites compartidos.
+     */
+    public static HostConnectionLimits shared() {
+        return SHARED;
+    }
+
+    /**
+     * Fija el límite de conexiones de un servidor.
+     *
+     * @param host Servidor.
+     * @param max  Número máximo de conexiones simultáneas.
+     */
+    public synchronized void setLimit(String host, int max) {
+        limits.put(host, Math.max(1, max));
+        notifyAll();
+    }
+
+    /**
+     * Reserva una conexión con el servidor, esperando si ya se ha alcanzado su
+     * límite.
+     *
+     * @param host Servidor.
+     * @throws InterruptedException Si se interrumpe la espera.
+     */
+    public synchronized void acquire(String host) throws InterruptedException {
+        while (open.getOrDefault(host, 0) >= limits.getOrDefault(host, defaultLimit)) {
+            wait();
+        }
+        open.merge(host, 1, Integer::sum);
+    }
+
+    /**
+     * Libera una conexión reservada con acquire.
+     *
+     * @param host Servidor.
+     */
+    public synchronized void release(String host) {
+        open.merge(host, -1, Integer::sum);
+        notifyAll();
+    }
+}
@@ -0,0 +1,157 @@
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * La clase LatencyHistogram cuenta duraciones en intervalos de potencias de 2
+ * de microsegundos (hasta 1 µs, hasta 2 µs, hasta 4 µs...) para calcular
+ * percentiles sin guardar cada medida. Cada intervalo es un LongAdder, así que
+ * registrar una medida no usa bloqueos y apenas compite entre hilos. Los
+ * percentiles se redondean al límite superior de su intervalo, con un error
+ * máximo del doble.
+ *
+ * @author RoberRey
+ */
+public class LatencyHistogram {
+
+    // 2^40 µs son unos 12 días; lo que pase de ahí va al último intervalo.
+    private static final int BUCKETS = 41;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Crea un histograma vacío.
+     */
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Registra una duración.
+     *
+     * @param nanos Duración en nanosegundos.
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos) / 1000;
+        int bucket = micros <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1);
+        buckets[Math.min(bucket, BUCKETS - 1)].increment();
+        count.increment();
+        totalNanos.add(Math.max(0, nanos));
+        maxNanos.accumulate(nanos);
+    }
+
+    /**
+     * Toma una foto de los valores actuales. Como los contadores se leen uno a
+     * uno, las medidas que llegan durante la foto pueden quedar a medias.
+     *
+     * @return Resumen del histograma.
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        long max = maxNanos.get();
+        // El límite del intervalo no puede pasar del máximo observado.
+        long maxMicros = Math.max(1, max / 1000);
+        return new Snapshot(count.sum(), totalNanos.sum(), max,
+                Math.min(percentile(counts, total, 0.50), maxMicros),
+                Math.min(percentile(counts, total, 0.90), maxMicros),
+                Math.min(percentile(counts, total, 0.99), maxMicros));
+    }
+
+    /**
+     * @return Límite superior en microsegundos del intervalo donde cae el
+     *         percentil, o 0 si no hay medidas.
+     */
+    private static long percentile(long[] counts, long total, double fraction) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return 1L << i;
+            }
+        }
+        return 1L << (counts.length - 1);
+    }
+
+    /**
+     * Resumen inmutable de un histograma.
+     */
+    public static final class Snapshot {
+        private final long count;
+        private final long totalNanos;
+        private final long maxNanos;
+        private final long p50Micros;
+        private final long p90Micros;
+        private final long p99Micros;
+
+        private Snapshot(long count, long totalNanos, long maxNanos, long p50Micros, long p90Micros,
+                long p99Micros) {
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+            this.p50Micros = p50Micros;
+            this.p90Micros = p90Micros;
+            this.p99Micros = p99Micros;
+        }
+
+        /**
+         * @return Número de medidas.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return Media en microsegundos, o 0 si no hay medidas.
+         */
+        public long getMeanMicros() {
+            return count == 0 ? 0 : totalNanos / count / 1000;
+        }
+
+        /**
+         * @return Máximo en microsegundos.
+         */
+        public long getMaxMicros() {
+            return maxNanos / 1000;
+        }
+
+        /**
+         * @return Mediana en microsegundos.
+         */
+        public long getP50Micros() {
+            return p50Micros;
+        }
+
+        /**
+         * @return Percentil 90 en microsegundos.
+         */
+        public long getP90Micros() {
+            return p90Micros;
+        }
+
+        /**
+         * @return Percentil 99 en microsegundos.
+         */
+        public long getP99Micros() {
+            return p99Micros;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("n=%d media=%d µs p50=%d µs p90=%d µs p99=%d µs max=%d µs",
+                    count, getMeanMicros(), p50Micros, p90Micros, p99Micros, getMaxMicros());
+        }
+    }
+}
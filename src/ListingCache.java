@@ -0,0 +1,249 @@
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * La clase ListingCache guarda los listados de directorio de un servidor para
+ * no repetir EPSV/PASV y LIST (dos viajes de ida y vuelta y una conexión de
+ * datos) cada vez que se consulta un directorio muy usado. Las entradas se
+ * indexan por la ruta absoluta del directorio y caducan pasado un tiempo. Si
+ * se supera el máximo de entradas o de bytes, se descartan primero las que
+ * llevan más tiempo sin usarse (LRU).
+ * Las sesiones invalidan el directorio afectado por sus propios STOR, APPE,
+ * DELE y RNTO; los cambios hechos por otros clientes solo se ven al caducar la
+ * entrada. Todas las sesiones contra el mismo servidor y usuario comparten la
+ * caché que devuelve forServer.
+ *
+ * @author RoberRey
+ */
+public class ListingCache {
+
+    // Viajes de ida y vuelta que ahorra cada acierto: EPSV/PASV y LIST/MLSD.
+    private static final int ROUND_TRIPS_PER_LISTING = 2;
+
+    private static final Map<String, ListingCache> SERVERS = new ConcurrentHashMap<>();
+
+    /**
+     * Listado guardado con su caducidad y su tamaño.
+     */
+    private static final class Entry {
+        private final DirectoryListing listing;
+        private final long expiresAt;
+        private final long bytes;
+
+        private Entry(DirectoryListing listing, long expiresAt) {
+            this.listing = listing;
+            this.expiresAt = expiresAt;
+            this.bytes = listing.getMemoryFootprint();
+        }
+    }
+
+    private final long ttlMillis;
+    private final int maxEntries;
+    private final long maxBytes;
+    // En orden de acceso: la primera entrada es la que lleva más tiempo sin usarse.
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    // Aumenta con cada invalidación, para no guardar listados pedidos antes de ella.
+    private long version;
+    private long hits;
+    private long misses;
+
+    /**
+     * Crea una instancia de ListingCache.
+     *
+     * @param ttlMillis  Tiempo que se considera válido un listado, en
+     *                   milisegundos.
+     * @param maxEntries Número máximo de directorios guardados.
+     * @param maxBytes   Memoria máxima de los listados guardados, en bytes.
+     */
+    public ListingCache(long ttlMillis, int maxEntries, long maxBytes) {
+        this.ttlMillis = ttlMillis;
+        this.maxEntries = Math.max(1, maxEntries);
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Devuelve la caché compartida de un servidor y usuario, que se crea la
+     * primera vez con una validez de 30 segundos, 1024 directorios y 64 MB.
+     *
+     * @param server Dirección del servidor FTP.
+     * @param port   Puerto del servidor FTP.
+     * @param user   Usuario, porque cada uno puede ver un contenido distinto.
+     * @return Caché del servidor.
+     */
+    public static ListingCache forServer(String server, int port, String user) {
+        return SERVERS.computeIfAbsent(user + "@" + server + ":" + port,
+                key -> new ListingCache(30_000, 1024, 64L * 1024 * 1024));
+    }
+
+    /**
+     * Busca el listado vigente de un directorio. El listado devuelto es
+     * compartido y no se debe modificar.
+     *
+     * @param directory Ruta absoluta del directorio.
+     * @return Listado guardado o null si no está o ha caducado.
+     */
+    public synchronized DirectoryListing get(String directory) {
+        Entry entry = entries.get(directory);
+        if (entry != null && entry.expiresAt <= System.currentTimeMillis()) {
+            remove(directory);
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.listing;
+    }
+
+    /**
+     * @return Versión actual, que se pasa a put para descartar los listados
+     *         pedidos antes de una invalidación.
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Guarda el listado de un directorio si no ha habido invalidaciones desde
+     * que se pidió, y descarta los menos usados si se superan los máximos.
+     *
+     * @param directory Ruta absoluta del directorio.
+     * @param listing   Listado completo del directorio.
+     * @param version   Valor de getVersion() antes de pedir el listado.
+     */
+    public synchronized void put(String directory, DirectoryListing listing, long version) {
+        if (version != this.version) {
+            return;
+        }
+        remove(directory);
+        Entry entry = new Entry(listing, System.currentTimeMillis() + ttlMillis);
+        if (entry.bytes > maxBytes) {
+            return;
+        }
+        entries.put(directory, entry);
+        bytes += entry.bytes;
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes) && eldest.hasNext()) {
+            bytes -= eldest.next().getValue().bytes;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Descarta el listado de un directorio porque su contenido ha cambiado.
+     *
+     * @param directory Ruta absoluta del directorio.
+     */
+    public synchronized void invalidate(String directory) {
+        version++;
+        remove(directory);
+    }
+
+    /**
+     * Descarta todos los listados.
+     */
+    public synchronized void clear() {
+        version++;
+        entries.clear();
+        bytes = 0;
+    }
+
+    private void remove(String directory) {
+        Entry removed = entries.remove(directory);
+        if (removed != null) {
+            bytes -= removed.bytes;
+        }
+    }
+
+    /**
+     * @return Número de consultas atendidas con un listado guardado.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return Número de consultas que han necesitado pedir el listado.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return Proporción de aciertos entre 0 y 1.
+     */
+    public synchronized double getHitRatio() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * @return Viajes de ida y vuelta al servidor ahorrados por los aciertos.
+     */
+    public synchronized long getSavedRoundTrips() {
+        return hits * ROUND_TRIPS_PER_LISTING;
+    }
+
+    /**
+     * @return Memoria estimada de los listados guardados, en bytes.
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return Número de directorios guardados.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d directorios, %d KB, %.1f%% aciertos, %d viajes ahorrados",
+                entries.size(), bytes / 1024, getHitRatio() * 100, getSavedRoundTrips());
+    }
+
+    /**
+     * Resuelve una ruta remota respecto a un directorio y la normaliza,
+     * eliminando "." y "..", las barras repetidas y la barra final.
+     *
+     * @param directory Directorio de trabajo absoluto.
+     * @param path      Ruta absoluta o relativa, o null para el propio
+     *                  directorio.
+     * @return Ruta absoluta normalizada.
+     */
+    public static String resolve(String directory, String path) {
+        String full = path == null || path.isEmpty() ? directory
+                : path.startsWith("/") ? path : directory + "/" + path;
+        Deque<String> parts = new ArrayDeque<>();
+        for (String part : full.split("/")) {
+            if (part.isEmpty() || part.equals(".")) {
+                continue;
+            }
+            if (part.equals("..")) {
+                parts.pollLast();
+            } else {
+                parts.addLast(part);
+            }
+        }
+        return "/" + String.join("/", parts);
+    }
+
+    /**
+     * Devuelve el directorio que contiene una ruta absoluta normalizada.
+     *
+     * @param path Ruta absoluta normalizada.
+     * @return Directorio padre, o "/" para las entradas de la raíz.
+     */
+    public static String parentOf(String path) {
+        int slash = path.lastIndexOf('/');
+        return slash <= 0 ? "/" : path.substring(0, slash);
+    }
+}
@@ -0,0 +1,488 @@
+import java.io.OutputStream;
+import java.time.Year;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+
+/**
+ * La clase ListingParser interpreta el listado de un directorio según llega
+ * por el canal de datos y va rellenando un DirectoryListing. Es un
+ * OutputStream, así que se pasa directamente a sendList o sendMlsd y las
+ * líneas se procesan a medida que se reciben, sin guardar el listado completo.
+ * Entiende las líneas de MLSD ("type=file;size=10;modify=...; nombre"), las
+ * de "ls -l" de los servidores Unix y las de los servidores Windows
+ * ("01-31-24  10:15AM  <DIR>  nombre"). Las líneas que no reconoce se ignoran.
+ * Los campos se leen de los bytes de cada línea, sin crear String. Las fechas
+ * de LIST, que el servidor da en su hora local, se toman como UTC.
+ *
+ * @author RoberRey
+ */
+public class ListingParser extends OutputStream {
+
+    private static final byte[][] MONTHS = {
+            { 'j', 'a', 'n' }, { 'f', 'e', 'b' }, { 'm', 'a', 'r' }, { 'a', 'p', 'r' },
+            { 'm', 'a', 'y' }, { 'j', 'u', 'n' }, { 'j', 'u', 'l' }, { 'a', 'u', 'g' },
+            { 's', 'e', 'p' }, { 'o', 'c', 't' }, { 'n', 'o', 'v' }, { 'd', 'e', 'c' } };
+
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+    // Máximo de campos de una línea de "ls -l" que se localizan.
+    private static final int MAX_FIELDS = 10;
+
+    private final DirectoryListing listing;
+    private final boolean mlsd;
+    private final long now = System.currentTimeMillis();
+    private final int currentYear = Year.now(ZoneOffset.UTC).getValue();
+    private byte[] line = new byte[256];
+    private int length;
+    // Inicio y final de cada campo de la línea que se está interpretando.
+    private final int[] fieldStart = new int[MAX_FIELDS];
+    private final int[] fieldEnd = new int[MAX_FIELDS];
+
+    /**
+     * Crea una instancia de ListingParser.
+     *
+     * @param listing Listado en el que se añaden las entradas.
+     * @param mlsd    true si los datos son la respuesta a MLSD, false si son la
+     *                de LIST.
+     */
+    public ListingParser(DirectoryListing listing, boolean mlsd) {
+        this.listing = listing;
+        this.mlsd = mlsd;
+    }
+
+    /**
+     * @return Listado con las entradas interpretadas hasta ahora.
+     */
+    public DirectoryListing getListing() {
+        return listing;
+    }
+
+    @Override
+    public void write(int b) {
+        accept((byte) b);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int count) {
+        for (int i = offset; i < offset + count; i++) {
+            accept(buffer[i]);
+        }
+    }
+
+    /**
+     * Interpreta la última línea si no terminaba en salto de línea.
+     */
+    @Override
+    public void close() {
+        if (length > 0) {
+            parseLine();
+            length = 0;
+        }
+    }
+
+    private void accept(byte b) {
+        if (b == '\n') {
+            parseLine();
+            length = 0;
+        } else if (b != '\r') {
+            if (length == line.length) {
+                line = Arrays.copyOf(line, line.length * 2);
+            }
+            line[length++] = b;
+        }
+    }
+
+    private void parseLine() {
+        if (length == 0) {
+            return;
+        }
+        if (mlsd) {
+            parseMlsd();
+        } else if (isDigit(line[0])) {
+            parseWindows();
+        } else {
+            parseUnix();
+        }
+    }
+
+    /**
+     * Interpreta una línea de MLSD: hechos "nombre=valor;" separados del nombre
+     * del fichero por un espacio. Se ignoran las entradas "cdir" y "pdir" (el
+     * propio directorio y su padre).
+     */
+    private void parseMlsd() {
+        int space = indexOf((byte) ' ', 0, length);
+        if (space < 0) {
+            return;
+        }
+        long size = DirectoryListing.UNKNOWN;
+        long modified = DirectoryListing.UNKNOWN;
+        byte type = DirectoryListing.OTHER;
+        int permissions = DirectoryListing.UNKNOWN;
+        int mode = DirectoryListing.UNKNOWN;
+        int fact = 0;
+        while (fact < space) {
+            int end = indexOf((byte) ';', fact, space);
+            if (end < 0) {
+                end = space;
+            }
+            int equals = indexOf((byte) '=', fact, end);
+            if (equals > fact) {
+                int value = equals + 1;
+                if (matches(fact, equals, "type", false)) {
+                    if (matches(value, end, "file", false)) {
+                        type = DirectoryListing.FILE;
+                    } else if (matches(value, end, "dir", false)) {
+                        type = DirectoryListing.DIRECTORY;
+                    } else if (matches(value, end, "cdir", false) || matches(value, end, "pdir", false)) {
+                        return;
+                    } else if (matches(value, end, "OS.unix=slink", true)
+                            || matches(value, end, "OS.unix=symlink", true)) {
+                        type = DirectoryListing.LINK;
+                    }
+                } else if (matches(fact, equals, "size", false)) {
+                    size = parseNumber(value, end);
+                } else if (matches(fact, equals, "modify", false)) {
+                    modified = parseTimestamp(value, end);
+                } else if (matches(fact, equals, "unix.mode", false)) {
+                    mode = (int) parseOctal(value, end);
+                } else if (matches(fact, equals, "perm", false)) {
+                    permissions = parseMlsdPermissions(value, end);
+                }
+            }
+            fact = end + 1;
+        }
+        if (mode != DirectoryListing.UNKNOWN) {
+            permissions = mode & 07777;
+        }
+        listing.add(line, space + 1, length - space - 1, size, modified, type, permissions);
+    }
+
+    /**
+     * Traduce el hecho "perm" de MLSD a permisos de Unix para el usuario
+     * actual: lectura si se puede leer o listar, escritura si se puede
+     * modificar o crear, y ejecución si se puede entrar en el directorio.
+     */
+    private int parseMlsdPermissions(int start, int end) {
+        int permissions = 0;
+        for (int i = start; i < end; i++) {
+            switch (line[i] | 0x20) {
+                case 'r':
+                case 'l':
+                    permissions |= 0400;
+                    break;
+                case 'w':
+                case 'a':
+                case 'c':
+                case 'm':
+                    permissions |= 0200;
+                    break;
+                case 'e':
+                    permissions |= 0100;
+                    break;
+                default:
+                    break;
+            }
+        }
+        return permissions;
+    }
+
+    /**
+     * Interpreta una línea de "ls -l": permisos, enlaces, propietario, grupo,
+     * tamaño, fecha en tres campos y nombre. Como algunos servidores omiten el
+     * grupo, la fecha se localiza buscando el nombre del mes.
+     */
+    private void parseUnix() {
+        byte typeChar = line[0];
+        byte type;
+        if (typeChar == '-') {
+            type = DirectoryListing.FILE;
+        } else if (typeChar == 'd') {
+            type = DirectoryListing.DIRECTORY;
+        } else if (typeChar == 'l') {
+            type = DirectoryListing.LINK;
+        } else if (typeChar == 'b' || typeChar == 'c' || typeChar == 'p' || typeChar == 's') {
+            type = DirectoryListing.OTHER;
+        } else {
+            // Por ejemplo la línea "total 123".
+            return;
+        }
+        int fields = splitFields(MAX_FIELDS);
+        int month = -1;
+        for (int i = 3; i + 2 < fields; i++) {
+            if (monthOf(fieldStart[i], fieldEnd[i]) >= 0 && isDigit(line[fieldStart[i - 1]])) {
+                month = i;
+                break;
+            }
+        }
+        if (month < 0 || month + 3 >= fields) {
+            return;
+        }
+        int nameStart = fieldStart[month + 3];
+        int nameEnd = length;
+        if (type == DirectoryListing.LINK) {
+            int arrow = indexOf(" -> ", nameStart);
+            if (arrow > 0) {
+                nameEnd = arrow;
+            }
+        }
+        long size = parseNumber(fieldStart[month - 1], fieldEnd[month - 1]);
+        long modified = parseUnixDate(month);
+        listing.add(line, nameStart, nameEnd - nameStart, size, modified, type, parseUnixPermissions());
+    }
+
+    /**
+     * Convierte "rwxr-xr-x" (a partir del segundo carácter) en bits de Unix,
+     * incluidos setuid, setgid y sticky.
+     */
+    private int parseUnixPermissions() {
+        if (length < 10) {
+            return DirectoryListing.UNKNOWN;
+        }
+        int permissions = 0;
+        for (int i = 0; i < 9; i++) {
+            byte c = line[1 + i];
+            int bit = 1 << (8 - i);
+            if (c == 'r' || c == 'w' || c == 'x' || c == 's' || c == 't') {
+                permissions |= bit;
+            }
+            if (c == 's' || c == 'S') {
+                permissions |= i < 3 ? 04000 : 02000;
+            } else if (c == 't' || c == 'T') {
+                permissions |= 01000;
+            }
+        }
+        return permissions;
+    }
+
+    /**
+     * Calcula la fecha de "ls -l": mes, día y hora ("10:15") o año ("2023").
+     * Si lleva hora, el año es el actual salvo que la fecha quede en el
+     * futuro, en cuyo caso es del año anterior.
+     */
+    private long parseUnixDate(int month) {
+        int monthValue = monthOf(fieldStart[month], fieldEnd[month]) + 1;
+        long day = parseNumber(fieldStart[month + 1], fieldEnd[month + 1]);
+        int start = fieldStart[month + 2];
+        int end = fieldEnd[month + 2];
+        int colon = indexOf((byte) ':', start, end);
+        if (day < 1) {
+            return DirectoryListing.UNKNOWN;
+        }
+        if (colon < 0) {
+            long year = parseNumber(start, end);
+            return year < 0 ? DirectoryListing.UNKNOWN : epochMillis((int) year, monthValue, (int) day, 0, 0, 0);
+        }
+        long hour = parseNumber(start, colon);
+        long minute = parseNumber(colon + 1, end);
+        if (hour < 0 || minute < 0) {
+            return DirectoryListing.UNKNOWN;
+        }
+        int year = currentYear;
+        long time = epochMillis(year, monthValue, (int) day, (int) hour, (int) minute, 0);
+        if (time > now + DAY_MILLIS) {
+            time = epochMillis(year - 1, monthValue, (int) day, (int) hour, (int) minute, 0);
+        }
+        return time;
+    }
+
+    /**
+     * Interpreta una línea de un servidor Windows: fecha "MM-DD-YY", hora
+     * "hh:mmAM", "<DIR>" o el tamaño, y nombre.
+     */
+    private void parseWindows() {
+        int fields = splitFields(4);
+        if (fields < 4) {
+            return;
+        }
+        byte type;
+        long size;
+        if (line[fieldStart[2]] == '<') {
+            type = DirectoryListing.DIRECTORY;
+            size = DirectoryListing.UNKNOWN;
+        } else {
+            type = DirectoryListing.FILE;
+            size = parseNumber(fieldStart[2], fieldEnd[2]);
+        }
+        long modified = DirectoryListing.UNKNOWN;
+        int date = fieldStart[0];
+        int time = fieldStart[1];
+        if (fieldEnd[0] - date >= 8 && fieldEnd[1] - time >= 5) {
+            long month = parseNumber(date, date + 2);
+            long day = parseNumber(date + 3, date + 5);
+            long year = parseNumber(date + 6, fieldEnd[0]);
+            long hour = parseNumber(time, time + 2);
+            long minute = parseNumber(time + 3, time + 5);
+            if (month > 0 && day > 0 && year >= 0 && hour >= 0 && minute >= 0) {
+                if (year < 100) {
+                    year += year < 70 ? 2000 : 1900;
+                }
+                if (fieldEnd[1] - time >= 7) {
+                    boolean pm = (line[time + 5] | 0x20) == 'p';
+                    hour = hour % 12 + (pm ? 12 : 0);
+                }
+                modified = epochMillis((int) year, (int) month, (int) day, (int) hour, (int) minute, 0);
+            }
+        }
+        listing.add(line, fieldStart[3], length - fieldStart[3], size, modified, type, DirectoryListing.UNKNOWN);
+    }
+
+    /**
+     * Separa la línea en campos por espacios. El último campo localizado se
+     * extiende hasta el final de la línea, porque es el nombre.
+     *
+     * @return Número de campos localizados.
+     */
+    private int splitFields(int max) {
+        int fields = 0;
+        int i = 0;
+        while (i < length && fields < max) {
+            while (i < length && line[i] == ' ') {
+                i++;
+            }
+            if (i == length) {
+                break;
+            }
+            fieldStart[fields] = i;
+            while (i < length && line[i] != ' ') {
+                i++;
+            }
+            fieldEnd[fields++] = i;
+        }
+        return fields;
+    }
+
+    /**
+     * Convierte "YYYYMMDDHHMMSS[.sss]" (UTC) en milisegundos desde 1970.
+     */
+    private long parseTimestamp(int start, int end) {
+        if (end - start < 14) {
+            return DirectoryListing.UNKNOWN;
+        }
+        long year = parseNumber(start, start + 4);
+        long month = parseNumber(start + 4, start + 6);
+        long day = parseNumber(start + 6, start + 8);
+        long hour = parseNumber(start + 8, start + 10);
+        long minute = parseNumber(start + 10, start + 12);
+        long second = parseNumber(start + 12, start + 14);
+        if (year < 0 || month < 1 || day < 1 || hour < 0 || minute < 0 || second < 0) {
+            return DirectoryListing.UNKNOWN;
+        }
+        long millis = 0;
+        if (end - start > 15 && line[start + 14] == '.') {
+            millis = parseNumber(start + 15, Math.min(end, start + 18));
+            for (int digits = Math.min(end, start + 18) - start - 15; digits < 3; digits++) {
+                millis *= 10;
+            }
+        }
+        return epochMillis((int) year, (int) month, (int) day, (int) hour, (int) minute, (int) second)
+                + Math.max(0, millis);
+    }
+
+    /**
+     * Calcula los milisegundos desde 1970 de una fecha y hora en UTC con la
+     * aritmética del calendario gregoriano, sin crear objetos.
+     */
+    static long epochMillis(int year, int month, int day, int hour, int minute, int second) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = Math.floorDiv(y, 400);
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        long days = era * 146097L + dayOfEra - 719468;
+        return ((days * 24 + hour) * 60 + minute) * 60_000L + second * 1000L;
+    }
+
+    /**
+     * @return Número decimal de los bytes indicados o -1 si no lo son.
+     */
+    private long parseNumber(int start, int end) {
+        if (start >= end) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            if (!isDigit(line[i])) {
+                return -1;
+            }
+            value = value * 10 + (line[i] - '0');
+        }
+        return value;
+    }
+
+    /**
+     * @return Número octal de los bytes indicados o -1 si no lo son.
+     */
+    private long parseOctal(int start, int end) {
+        if (start >= end) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            if (line[i] < '0' || line[i] > '7') {
+                return -1;
+            }
+            value = value * 8 + (line[i] - '0');
+        }
+        return value;
+    }
+
+    /**
+     * @return Mes de 0 a 11 si los bytes son su abreviatura en inglés o -1.
+     */
+    private int monthOf(int start, int end) {
+        if (end - start != 3) {
+            return -1;
+        }
+        for (int m = 0; m < MONTHS.length; m++) {
+            byte[] name = MONTHS[m];
+            if ((line[start] | 0x20) == name[0] && (line[start + 1] | 0x20) == name[1]
+                    && (line[start + 2] | 0x20) == name[2]) {
+                return m;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compara los bytes indicados con un texto ASCII sin distinguir
+     * mayúsculas.
+     *
+     * @param prefix Si es true, basta con que los bytes empiecen por el texto.
+     */
+    private boolean matches(int start, int end, String text, boolean prefix) {
+        if (prefix ? end - start < text.length() : end - start != text.length()) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (Character.toLowerCase((char) line[start + i]) != Character.toLowerCase(text.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexOf(byte b, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (line[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int indexOf(String text, int start) {
+        outer: for (int i = start; i + text.length() <= length; i++) {
+            for (int j = 0; j < text.length(); j++) {
+                if (line[i + j] != text.charAt(j)) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+}
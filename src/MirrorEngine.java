@@ -0,0 +1,372 @@
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * La clase MirrorEngine replica un árbol de directorios remoto en un directorio
+ * local. El recorrido lo hacen tareas de un ForkJoinPool: cada una lista un
+ * directorio, encola la descarga de sus ficheros y crea una tarea por
+ * subdirectorio, que los hilos libres roban para repartirse las ramas del
+ * árbol. Los listados y las descargas se ejecutan en las sesiones de un
+ * FtpSessionPool, en colas distintas que se atienden por turnos, de modo que
+ * se siguen descubriendo directorios mientras se descargan ficheros.
+ * Para no acumular descargas pendientes sin límite, el recorrido se detiene
+ * cuando los bytes encolados y en curso superan un máximo, y continúa al
+ * terminar otras descargas.
+ * Los patrones glob de inclusión y exclusión se aplican a la ruta relativa a
+ * la raíz ("docs/2024/informe.pdf"); los de exclusión también podan
+ * directorios enteros. Los enlaces simbólicos no se siguen.
+ * Los nombres del listado que no son un nombre simple (con "/", "\", NUL o
+ * absolutos) o que resolverían fuera del directorio local se rechazan y se
+ * cuentan como fallos, para que un servidor no pueda escribir fuera de él.
+ * En modo incremental se guarda un SyncManifest con el tamaño y la fecha de
+ * cada fichero descargado, y en la siguiente réplica solo se descargan los
+ * ficheros nuevos o cuyo tamaño o fecha ha cambiado, siempre que la copia
+ * local siga existiendo con el tamaño esperado.
+ *
+ * @author RoberRey
+ */
+public class MirrorEngine {
+
+    private static final String LIST_QUEUE = "listados";
+    private static final String RETR_QUEUE = "descargas";
+
+    private final FtpSessionPool sessions;
+    private final int parallelism;
+    private final List<PathMatcher> includes = new ArrayList<>();
+    private final List<PathMatcher> excludes = new ArrayList<>();
+    private final InFlightBytes inFlight;
+
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong unchanged = new AtomicLong();
+    // Índice de la sincronización incremental, o null para descargarlo todo.
+    private Path manifestFile;
+    private SyncManifest previous;
+    private SyncManifest.Writer next;
+    private final Queue<String> failures = new ConcurrentLinkedQueue<>();
+    // Directorio local de la réplica en curso, absoluto y normalizado.
+    private volatile Path root;
+    private volatile long start;
+    // Descargas encoladas que aún no han terminado.
+    private long pending;
+
+    /**
+     * Crea una instancia de MirrorEngine.
+     *
+     * @param sessions         Pool de sesiones con el que se listan y descargan
+     *                         los ficheros.
+     * @param parallelism      Número de hilos que recorren el árbol.
+     * @param maxInFlightBytes Máximo de bytes encolados o descargándose a la vez.
+     */
+    public MirrorEngine(FtpSessionPool sessions, int parallelism, long maxInFlightBytes) {
+        this.sessions = sessions;
+        this.parallelism = Math.max(1, parallelism);
+        this.inFlight = new InFlightBytes(maxInFlightBytes);
+    }
+
+    /**
+     * Añade un patrón glob de ficheros a replicar. Si no se añade ninguno, se
+     * replican todos.
+     *
+     * @param glob Patrón sobre la ruta relativa, por ejemplo "**.pdf".
+     */
+    public void include(String glob) {
+        includes.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+    }
+
+    /**
+     * Añade un patrón glob de ficheros o directorios que no se replican.
+     *
+     * @param glob Patrón sobre la ruta relativa, por ejemplo "tmp" o "**.log".
+     */
+    public void exclude(String glob) {
+        excludes.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+    }
+
+    /**
+     * Activa la sincronización incremental con el índice indicado. Si no existe,
+     * la primera réplica lo descarga todo y lo crea.
+     *
+     * @param file Fichero del índice, normalmente junto al directorio local.
+     */
+    public void setManifest(Path file) {
+        this.manifestFile = file;
+    }
+
+    /**
+     * Replica el directorio remoto en el local, creando los subdirectorios que
+     * falten y sobrescribiendo los ficheros existentes. Espera a que terminen
+     * todas las descargas. Los fallos de ficheros o subdirectorios concretos no
+     * detienen la réplica; se cuentan en el resultado y se pueden consultar con
+     * getFailures(), que solo recogen los de esta llamada. En modo incremental,
+     * al terminar se reescribe el índice con los ficheros descargados y los que
+     * no han cambiado; los que han fallado no se incluyen, para que se vuelvan a
+     * intentar.
+     *
+     * @param remoteRoot Ruta absoluta del directorio remoto.
+     * @param localRoot  Directorio local de destino.
+     * @return Estadísticas de la réplica.
+     * @throws IOException Si no se puede crear el directorio local, leer o
+     *                     escribir el índice, o se interrumpe la espera.
+     */
+    public MirrorStats mirror(String remoteRoot, Path localRoot) throws IOException {
+        Files.createDirectories(localRoot);
+        root = localRoot.toAbsolutePath().normalize();
+        files.set(0);
+        bytes.set(0);
+        unchanged.set(0);
+        failures.clear();
+        previous = null;
+        next = null;
+        if (manifestFile != null) {
+            previous = SyncManifest.load(manifestFile);
+            next = new SyncManifest.Writer();
+        }
+        start = System.nanoTime();
+        ForkJoinPool walkers = new ForkJoinPool(parallelism);
+        try {
+            walkers.invoke(new WalkTask(ListingCache.resolve("/", remoteRoot), "", localRoot));
+            synchronized (this) {
+                while (pending > 0) {
+                    wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Réplica interrumpida", e);
+        } finally {
+            walkers.shutdown();
+        }
+        if (next != null) {
+            next.write(manifestFile);
+        }
+        return getProgress();
+    }
+
+    /**
+     * Devuelve el progreso de la réplica en curso, o el resultado si ya ha
+     * terminado.
+     *
+     * @return Estadísticas hasta el momento.
+     */
+    public MirrorStats getProgress() {
+        return new MirrorStats(files.get(), bytes.get(), unchanged.get(), failures.size(),
+                System.nanoTime() - start);
+    }
+
+    /**
+     * @return Rutas remotas de los ficheros y directorios que han fallado, con
+     *         el motivo.
+     */
+    public List<String> getFailures() {
+        return new ArrayList<>(failures);
+    }
+
+    /**
+     * Tarea que lista un directorio remoto, encola sus ficheros y recorre sus
+     * subdirectorios en paralelo.
+     */
+    @SuppressWarnings("serial")
+    private final class WalkTask extends RecursiveAction {
+        private final String remote;
+        private final String relative;
+        private final Path local;
+
+        private WalkTask(String remote, String relative, Path local) {
+            this.remote = remote;
+            this.relative = relative;
+            this.local = local;
+        }
+
+        @Override
+        protected void compute() {
+            DirectoryListing listing;
+            try {
+                // join() en un hilo del ForkJoinPool compensa el bloqueo con otro hilo.
+                listing = sessions.submit(LIST_QUEUE, session -> session.listDirectory(remote)).join();
+                Files.createDirectories(local);
+            } catch (CompletionException | IOException e) {
+                failures.add(remote + ": " + (e.getCause() != null ? e.getCause() : e));
+                return;
+            }
+            List<WalkTask> subdirectories = new ArrayList<>();
+            for (int i = 0; i < listing.size(); i++) {
+                String name = listing.getName(i);
+                if (name.equals(".") || name.equals("..")) {
+                    continue;
+                }
+                try {
+                    Path target = resolveLocal(local, name);
+                    String path = relative.isEmpty() ? name : relative + "/" + name;
+                    String remotePath = ListingCache.resolve(remote, name);
+                    if (listing.isDirectory(i)) {
+                        if (!matches(excludes, path)) {
+                            subdirectories.add(new WalkTask(remotePath, path, target));
+                        }
+                    } else if (listing.getType(i) == DirectoryListing.FILE && isSelected(path)) {
+                        long size = listing.getSize(i);
+                        long modified = listing.getModified(i);
+                        if (!skipUnchanged(remotePath, target, size, modified)) {
+                            download(remotePath, target, size, modified);
+                        }
+                    }
+                } catch (InvalidPathException e) {
+                    failures.add(remote + ": nombre rechazado, " + e.getMessage());
+                }
+            }
+            invokeAll(subdirectories);
+        }
+    }
+
+    /**
+     * Resuelve un nombre del listado dentro de un directorio local,
+     * comprobando que es un nombre simple y que no sale de la raíz local.
+     *
+     * @throws InvalidPathException Si el nombre no es válido o sale de la raíz.
+     */
+    private Path resolveLocal(Path local, String name) {
+        if (name.isEmpty() || name.indexOf('/') >= 0 || name.indexOf('\\') >= 0 || name.indexOf('\0') >= 0) {
+            throw new InvalidPathException(name, "no es un nombre simple");
+        }
+        if (Path.of(name).isAbsolute()) {
+            throw new InvalidPathException(name, "es una ruta absoluta");
+        }
+        Path target = local.resolve(name);
+        if (!target.toAbsolutePath().normalize().startsWith(root)) {
+            throw new InvalidPathException(name, "sale del directorio local");
+        }
+        return target;
+    }
+
+    /**
+     * En modo incremental, comprueba si el fichero está en el índice anterior
+     * sin cambios y su copia local sigue ahí; en ese caso lo pasa al índice
+     * nuevo.
+     *
+     * @return true si no hace falta descargarlo.
+     */
+    private boolean skipUnchanged(String remote, Path local, long size, long modified) {
+        if (previous == null) {
+            return false;
+        }
+        int entry = previous.find(remote);
+        if (entry < 0 || !previous.isUnchanged(entry, size, modified)) {
+            return false;
+        }
+        try {
+            if (Files.size(local) != size) {
+                return false;
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        next.copy(previous, entry, remote);
+        unchanged.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Encola la descarga de un fichero cuando hay margen de bytes en curso.
+     */
+    private void download(String remote, Path local, long size, long modified) {
+        long reserved = inFlight.acquire(size);
+        synchronized (this) {
+            pending++;
+        }
+        sessions.submitRetr(RETR_QUEUE, remote, local).whenComplete((stats, error) -> {
+            inFlight.release(reserved);
+            if (error != null) {
+                failures.add(remote + ": " + (error.getCause() != null ? error.getCause() : error));
+            } else {
+                files.incrementAndGet();
+                bytes.addAndGet(stats.getBytes());
+                if (next != null) {
+                    next.add(remote, size, modified, null);
+                }
+            }
+            synchronized (this) {
+                pending--;
+                notifyAll();
+            }
+        });
+    }
+
+    private boolean isSelected(String path) {
+        return (includes.isEmpty() || matches(includes, path)) && !matches(excludes, path);
+    }
+
+    private static boolean matches(List<PathMatcher> matchers, String path) {
+        Path candidate = Path.of(path);
+        for (PathMatcher matcher : matchers) {
+            if (matcher.matches(candidate)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Límite de bytes encolados o descargándose. Los hilos del ForkJoinPool
+     * esperan con managedBlock para que el pool compense el bloqueo.
+     */
+    private static final class InFlightBytes {
+        private final long max;
+        private long used;
+
+        private InFlightBytes(long max) {
+            this.max = Math.max(1, max);
+        }
+
+        /**
+         * Reserva los bytes de un fichero, esperando si no hay margen. Un fichero
+         * mayor que el máximo reserva el máximo, para que no espere para siempre.
+         *
+         * @return Bytes reservados, que se deben pasar a release.
+         */
+        private long acquire(long size) {
+            long wanted = Math.min(Math.max(0, size), max);
+            try {
+                ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                    @Override
+                    public boolean block() throws InterruptedException {
+                        synchronized (InFlightBytes.this) {
+                            while (used > 0 && used + wanted > max) {
+                                InFlightBytes.this.wait();
+                            }
+                            used += wanted;
+                        }
+                        return true;
+                    }
+
+                    @Override
+                    public boolean isReleasable() {
+                        return false;
+                    }
+                });
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                synchronized (this) {
+                    used += wanted;
+                }
+            }
+            return wanted;
+        }
+
+        private synchronized void release(long reserved) {
+            used -= reserved;
+            notifyAll();
+        }
+    }
+}
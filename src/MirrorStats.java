@@ -0,0 +1,91 @@
+/**
+ * La clase MirrorStats resume el progreso o el resultado de una réplica de
+ * directorios: ficheros y bytes descargados, ficheros que no se han descargado
+ * porque no habían cambiado, ficheros que han fallado y tiempo
+ * transcurrido, a partir de los cuales se calculan los ficheros y bytes por
+ * segundo.
+ *
+ * @author RoberRey
+ */
+public class MirrorStats {
+
+    private final long files;
+    private final long bytes;
+    private final long unchanged;
+    private final long failures;
+    private final long nanos;
+
+    /**
+     * Crea una instancia de MirrorStats.
+     *
+     * @param files     Número de ficheros descargados.
+     * @param bytes     Número de bytes descargados.
+     * @param unchanged Número de ficheros omitidos por no haber cambiado.
+     * @param failures  Número de ficheros o directorios que han fallado.
+     * @param nanos     Tiempo transcurrido en nanosegundos.
+     */
+    public MirrorStats(long files, long bytes, long unchanged, long failures, long nanos) {
+        this.files = files;
+        this.bytes = bytes;
+        this.unchanged = unchanged;
+        this.failures = failures;
+        this.nanos = nanos;
+    }
+
+    /**
+     * @return Número de ficheros descargados.
+     */
+    public long getFiles() {
+        return files;
+    }
+
+    /**
+     * @return Número de bytes descargados.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return Número de ficheros omitidos por no haber cambiado desde la última
+     *         sincronización.
+     */
+    public long getUnchanged() {
+        return unchanged;
+    }
+
+    /**
+     * @return Número de ficheros o directorios que han fallado.
+     */
+    public long getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return Tiempo transcurrido en nanosegundos.
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * @return Ficheros descargados por segundo.
+     */
+    public double getFilesPerSecond() {
+        return nanos <= 0 ? 0 : files * 1_000_000_000.0 / nanos;
+    }
+
+    /**
+     * @return Bytes descargados por segundo.
+     */
+    public double getBytesPerSecond() {
+        return nanos <= 0 ? 0 : bytes * 1_000_000_000.0 / nanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d ficheros, %d bytes en %d ms (%.1f ficheros/s, %.1f KB/s), %d sin cambios, %d fallos",
+                files, bytes, nanos / 1_000_000, getFilesPerSecond(), getBytesPerSecond() / 1024, unchanged,
+                failures);
+    }
+}
@@ -0,0 +1,128 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * La clase ResumableDownload descarga un archivo remoto de forma que, si la
+ * transferencia se corta, el siguiente intento continúa desde el último punto
+ * guardado en lugar de empezar desde cero.
+ * Mientras la descarga avanza, cada cierto intervalo se sincroniza el fichero
+ * con disco y se actualiza su DownloadCheckpoint. Al reintentar, si el archivo
+ * remoto no ha cambiado (mismo tamaño y MDTM), se envía REST con los bytes
+ * confirmados y se sigue escribiendo a partir de ellos.
+ *
+ * @author RoberRey
+ */
+public class ResumableDownload {
+
+    private final ClientFtpProtocolService session;
+    private final long checkpointIntervalMillis;
+
+    /**
+     * Crea una instancia de ResumableDownload.
+     *
+     * @param session                  Sesión FTP ya conectada y autenticada.
+     * @param checkpointIntervalMillis Intervalo en milisegundos entre
+     *                                 sincronizaciones del diario; cuanto mayor,
+     *                                 menor coste pero más bytes a repetir tras
+     *                                 un corte.
+     */
+    public ResumableDownload(ClientFtpProtocolService session, long checkpointIntervalMillis) {
+        this.session = session;
+        this.checkpointIntervalMillis = checkpointIntervalMillis;
+    }
+
+    /**
+     * Descarga el archivo remoto en el fichero local, reanudando desde el diario
+     * si existe uno válido.
+     *
+     * @param remote Nombre del archivo remoto.
+     * @param target Ruta del fichero local.
+     * @return Estadísticas de los bytes transferidos en este intento.
+     * @throws IOException Si la descarga falla; el diario conserva el último punto
+     *                     confirmado para el siguiente intento.
+     */
+    public TransferStats download(String remote, Path target) throws IOException {
+        session.sendType("I");
+        long size = session.sendSize(remote);
+        String modified = session.sendMdtm(remote);
+        DownloadCheckpoint checkpoint = DownloadCheckpoint.load(target);
+        long offset = 0;
+        if (checkpoint != null && checkpoint.matches(remote, size, modified)
+                && Files.exists(target) && Files.size(target) >= checkpoint.getCommitted()) {
+            offset = checkpoint.getCommitted();
+        } else {
+            checkpoint = new DownloadCheckpoint(target, remote, size, modified);
+        }
+        if (offset == size && offset > 0) {
+            checkpoint.delete();
+            return new TransferStats(0, 0);
+        }
+        try (FileChannel file = FileChannel.open(target, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            session.sendPassv();
+            if (offset > 0 && !session.sendRest(offset)) {
+                offset = 0;
+            }
+            if (offset == 0) {
+                file.truncate(0);
+            }
+            FileSegment segment = new FileSegment(offset, size);
+            session.sendRetr(remote, file, segment);
+            CompletableFuture<TransferStats> transfer = session.getLastTransfer();
+            TransferStats stats = awaitWithCheckpoints(transfer, file, segment, checkpoint);
+            file.truncate(size);
+            file.force(true);
+            checkpoint.delete();
+            return stats;
+        }
+    }
+
+    /**
+     * Espera a que termine la transferencia guardando el progreso en el diario
+     * cada checkpointIntervalMillis. Si falla, confirma lo escrito hasta el
+     * momento antes de propagar el error.
+     */
+    private TransferStats awaitWithCheckpoints(CompletableFuture<TransferStats> transfer,
+            FileChannel file, FileSegment segment, DownloadCheckpoint checkpoint) throws IOException {
+        while (true) {
+            try {
+                TransferStats stats = transfer.get(checkpointIntervalMillis, TimeUnit.MILLISECONDS);
+                if (segment.remaining() > 0) {
+                    checkpoint(file, segment, checkpoint);
+                    throw new IOException("El servidor cerró el canal de datos antes de tiempo");
+                }
+                return stats;
+            } catch (TimeoutException e) {
+                checkpoint(file, segment, checkpoint);
+            } catch (ExecutionException e) {
+                checkpoint(file, segment, checkpoint);
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+                        : new IOException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                checkpoint(file, segment, checkpoint);
+                throw new IOException("Interrumpido esperando la descarga");
+            }
+        }
+    }
+
+    /**
+     * Sincroniza el fichero con disco y registra en el diario la posición
+     * alcanzada, solo si ha avanzado desde el último punto guardado.
+     */
+    private void checkpoint(FileChannel file, FileSegment segment, DownloadCheckpoint checkpoint)
+            throws IOException {
+        long position = segment.getPosition();
+        if (position > checkpoint.getCommitted()) {
+            file.force(false);
+            checkpoint.commit(position);
+        }
+    }
+}
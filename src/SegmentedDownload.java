@@ -0,0 +1,231 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * La clase SegmentedDownload descarga un archivo grande repartiéndolo en varios
+ * rangos de bytes que se piden en paralelo, cada uno por su propia sesión FTP
+ * (canal de control y de datos) mediante REST y RETR.
+ * Cada rango se escribe en su posición dentro de un fichero creado con el tamaño
+ * final. Cuando una sesión termina su rango, se queda con la mitad pendiente
+ * del rango más atrasado, de forma que las conexiones lentas no retrasan el
+ * final de la descarga.
+ * Si el archivo es pequeño o el servidor no soporta REST, se descarga con una
+ * única conexión.
+ *
+ * @author RoberRey
+ */
+public class SegmentedDownload {
+
+    // Tamaño mínimo de cada rango; por debajo no compensa abrir otra sesión.
+    private static final long MIN_SEGMENT_SIZE = 8L << 20;
+    // Tamaño mínimo de cada mitad al repartir el rango de una sesión lenta.
+    private static final long MIN_SPLIT_SIZE = 1L << 20;
+
+    private final String server;
+    private final int port;
+    private final String user;
+    private final String pass;
+    private final int maxSegments;
+    private final OutputStream log;
+
+    /**
+     * Crea una instancia de SegmentedDownload.
+     *
+     * @param server      Dirección del servidor FTP.
+     * @param port        Puerto del servidor FTP.
+     * @param user        Nombre de usuario.
+     * @param pass        Contraseña.
+     * @param maxSegments Número máximo de sesiones en paralelo.
+     * @param log         OutputStream utilizado para registrar comandos y
+     *                    respuestas.
+     */
+    public SegmentedDownload(String server, int port, String user, String pass,
+            int maxSegments, OutputStream log) {
+        this.server = server;
+        this.port = port;
+        this.user = user;
+        this.pass = pass;
+        this.maxSegments = Math.max(1, maxSegments);
+        this.log = log;
+    }
+
+    /**
+     * Descarga el archivo remoto en el fichero local indicado, en paralelo si el
+     * tamaño y el servidor lo permiten.
+     *
+     * @param remote Nombre del archivo remoto.
+     * @param target Ruta del fichero local; se crea o se trunca si ya existe.
+     * @return Estadísticas de la descarga completa.
+     * @throws IOException Si falla alguna sesión o queda algún rango sin descargar.
+     */
+    public TransferStats download(String remote, Path target) throws IOException {
+        long start = System.nanoTime();
+        List<ClientFtpProtocolService> sessions = new ArrayList<>();
+        try {
+            ClientFtpProtocolService first = openSession();
+            sessions.add(first);
+            long size = first.sendSize(remote);
+            int segmentCount = (int) Math.min(maxSegments, Math.max(1, size / MIN_SEGMENT_SIZE));
+            if (segmentCount == 1 || !first.sendRest(0)) {
+                first.sendPassv();
+                first.sendRetr(remote, target);
+                joinTransfer(first);
+            } else {
+                downloadSegments(remote, target, size, segmentCount, first, sessions);
+            }
+            TransferStats stats = new TransferStats(size, System.nanoTime() - start);
+            log.write(("Descarga segmentada de " + remote + " finalizada: " + stats + "\n").getBytes());
+            return stats;
+        } finally {
+            for (ClientFtpProtocolService session : sessions) {
+                try {
+                    session.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Reparte el archivo en rangos y los descarga con una sesión por rango.
+     */
+    private void downloadSegments(String remote, Path target, long size, int segmentCount,
+            ClientFtpProtocolService first, List<ClientFtpProtocolService> sessions) throws IOException {
+        Queue<FileSegment> pending = new ConcurrentLinkedQueue<>();
+        List<FileSegment> segments = new CopyOnWriteArrayList<>();
+        long segmentSize = size / segmentCount;
+        for (int i = 0; i < segmentCount; i++) {
+            long end = i == segmentCount - 1 ? size : (i + 1) * segmentSize;
+            FileSegment segment = new FileSegment(i * segmentSize, end);
+            pending.add(segment);
+            segments.add(segment);
+        }
+        for (int i = 1; i < segmentCount; i++) {
+            sessions.add(openSession());
+        }
+        List<Throwable> errors = new ArrayList<>();
+        try (FileChannel file = FileChannel.open(target, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // Reserva el tamaño final para que cada rango se escriba en su posición.
+            file.write(ByteBuffer.allocate(1), size - 1);
+            // Los trabajadores esperan a sus transferencias: en un pool acotado podrían ocupar todos los hilos.
+            TransferExecutor executor = TransferExecutor.virtualThreads();
+            List<Future<?>> workers = new ArrayList<>();
+            for (ClientFtpProtocolService session : sessions) {
+                workers.add(executor.submit(() -> {
+                    try {
+                        runSegments(session, remote, file, pending, segments);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }));
+            }
+            for (Future<?> worker : workers) {
+                try {
+                    worker.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrumpido esperando la descarga segmentada");
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    errors.add(cause instanceof UncheckedIOException ? cause.getCause() : cause);
+                }
+            }
+        }
+        for (FileSegment segment : segments) {
+            if (segment.remaining() > 0) {
+                IOException e = new IOException("Rango sin completar en " + remote + ": "
+                        + segment.getPosition() + "-" + segment.getEnd());
+                errors.forEach(e::addSuppressed);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Bucle de una sesión: descarga rangos pendientes y, cuando no quedan, divide
+     * el rango con más bytes por descargar.
+     */
+    private void runSegments(ClientFtpProtocolService session, String remote, FileChannel file,
+            Queue<FileSegment> pending, List<FileSegment> segments) throws IOException {
+        FileSegment segment;
+        while ((segment = nextSegment(pending, segments)) != null) {
+            try {
+                session.sendPassv();
+                if (!session.sendRest(segment.getPosition())) {
+                    throw new IOException("El servidor rechazó REST " + segment.getPosition());
+                }
+                session.sendRetr(remote, file, segment);
+                joinTransfer(session);
+                if (segment.remaining() > 0) {
+                    throw new IOException("El servidor cerró el canal de datos antes de tiempo");
+                }
+            } catch (IOException e) {
+                // Devuelve lo que falta para que lo termine otra sesión.
+                pending.add(segment);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Obtiene el siguiente rango a descargar: uno pendiente o, si no hay, la
+     * mitad final del rango más atrasado.
+     */
+    private FileSegment nextSegment(Queue<FileSegment> pending, List<FileSegment> segments) {
+        FileSegment next = pending.poll();
+        if (next != null) {
+            return next;
+        }
+        FileSegment slowest = null;
+        for (FileSegment segment : segments) {
+            if (slowest == null || segment.remaining() > slowest.remaining()) {
+                slowest = segment;
+            }
+        }
+        if (slowest == null) {
+            return null;
+        }
+        next = slowest.split(MIN_SPLIT_SIZE);
+        if (next != null) {
+            segments.add(next);
+        }
+        return next;
+    }
+
+    /**
+     * Abre una sesión autenticada y en modo binario.
+     */
+    private ClientFtpProtocolService openSession() throws IOException {
+        ClientFtpProtocolService session = new ClientFtpProtocolService(log);
+        session.connectTo(server, port);
+        session.authenticate(user, pass);
+        session.sendType("I");
+        return session;
+    }
+
+    /**
+     * Espera a que termine la última transferencia de la sesión.
+     */
+    private static void joinTransfer(ClientFtpProtocolService session) throws IOException {
+        try {
+            session.getLastTransfer().join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+                    : new IOException(e.getCause());
+        }
+    }
+}
@@ -0,0 +1,102 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/**
+ * La clase StreamingDigest calcula el resumen de una descarga a medida que
+ * llegan los datos, para verificarla sin volver a leer el fichero. Admite
+ * CRC32C y CRC32, que la JVM calcula con instrucciones específicas del
+ * procesador y apenas cuestan por byte, y los resúmenes de MessageDigest
+ * (SHA-256, SHA-1, MD5).
+ * Los servidores que calculan resúmenes lo hacen con HASH o con las
+ * extensiones XCRC, XSHA256, XSHA1 y XMD5; XCRC devuelve CRC32, no CRC32C, así
+ * que para comparar con el servidor hay que descargar con CRC32.
+ *
+ * @author RoberRey
+ */
+public class StreamingDigest {
+
+    private final String algorithm;
+    private final Checksum checksum;
+    private final MessageDigest digest;
+
+    private StreamingDigest(String algorithm, Checksum checksum, MessageDigest digest) {
+        this.algorithm = algorithm;
+        this.checksum = checksum;
+        this.digest = digest;
+    }
+
+    /**
+     * Crea un resumen vacío.
+     *
+     * @param algorithm "CRC32C", "CRC32" o un algoritmo de MessageDigest, como
+     *                  "SHA-256".
+     * @return Resumen listo para recibir datos.
+     * @throws IllegalArgumentException Si el algoritmo no existe.
+     */
+    public static StreamingDigest of(String algorithm) {
+        String name = algorithm.toUpperCase(Locale.ROOT);
+        switch (name) {
+            case "CRC32C":
+                return new StreamingDigest(name, new CRC32C(), null);
+            case "CRC32":
+                return new StreamingDigest(name, new CRC32(), null);
+            default:
+                try {
+                    return new StreamingDigest(name, null, MessageDigest.getInstance(name));
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalArgumentException("Algoritmo de resumen desconocido: " + algorithm, e);
+                }
+        }
+    }
+
+    /**
+     * @return Nombre del algoritmo en mayúsculas.
+     */
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Añade los bytes entre la posición y el límite del buffer, sin moverlos.
+     *
+     * @param data Buffer con los datos recibidos.
+     */
+    public void update(ByteBuffer data) {
+        int position = data.position();
+        if (checksum != null) {
+            checksum.update(data);
+        } else {
+            digest.update(data);
+        }
+        data.position(position);
+    }
+
+    /**
+     * Termina el cálculo. Después no se deben añadir más datos.
+     *
+     * @return Resumen; los CRC en 4 bytes big-endian.
+     */
+    public byte[] finish() {
+        if (checksum != null) {
+            return ByteBuffer.allocate(4).putInt((int) checksum.getValue()).array();
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Pasa un resumen a hexadecimal en minúsculas, como lo devuelven los
+     * servidores.
+     *
+     * @param value Resumen.
+     * @return Texto hexadecimal.
+     */
+    public static String toHex(byte[] value) {
+        return HexFormat.of().formatHex(value);
+    }
+}
@@ -0,0 +1,325 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * La clase SyncManifest es el índice de la última sincronización: por cada
+ * ruta remota descargada guarda su tamaño, su fecha de modificación y,
+ * opcionalmente, su resumen criptográfico. Al volver a sincronizar se compara
+ * con los listados nuevos para descargar solo lo nuevo o modificado.
+ * El fichero es binario y ya contiene la tabla hash con la que se busca cada
+ * ruta, así que cargarlo es solo proyectarlo en memoria: no se lee ni se
+ * decodifica ninguna entrada hasta que se consulta, y abrir un índice de
+ * millones de entradas es inmediato.
+ * Formato (big-endian): cabecera con "FTPM", versión, número de entradas y
+ * número de huecos de la tabla (potencia de 2); la tabla, con un hash de 32
+ * bits y la posición de la entrada (0 si está vacío) por hueco, ocupada como
+ * mucho al 75%; y las entradas, cada una con tamaño, fecha, longitud y bytes
+ * del resumen y longitud (16 bits) y bytes de la ruta en UTF-8.
+ *
+ * @author RoberRey
+ */
+public class SyncManifest {
+
+    private static final int MAGIC = 0x4654504D; // "FTPM"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+    private static final int SLOT_BYTES = 8;
+
+    private final ByteBuffer data;
+    private final int count;
+    private final int slots;
+
+    private SyncManifest(ByteBuffer data, int count, int slots) {
+        this.data = data;
+        this.count = count;
+        this.slots = slots;
+    }
+
+    /**
+     * Carga un índice proyectándolo en memoria. Si el fichero no existe,
+     * devuelve un índice vacío.
+     *
+     * @param file Fichero del índice.
+     * @return Índice cargado.
+     * @throws IOException Si el fichero no es un índice válido o no se puede
+     *                     leer.
+     */
+    public static SyncManifest load(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return new SyncManifest(ByteBuffer.allocate(0), 0, 0);
+        }
+        MappedByteBuffer data;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Índice demasiado grande: " + file);
+            }
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (data.capacity() < HEADER_BYTES || data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+            throw new IOException("El fichero no es un índice de sincronización: " + file);
+        }
+        int count = data.getInt(8);
+        int slots = data.getInt(12);
+        if (Integer.bitCount(slots) > 1 || HEADER_BYTES + (long) slots * SLOT_BYTES > data.capacity()) {
+            throw new IOException("Índice de sincronización dañado: " + file);
+        }
+        return new SyncManifest(data, count, slots);
+    }
+
+    /**
+     * @return Número de entradas del índice.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Busca una ruta en el índice.
+     *
+     * @param path Ruta remota absoluta.
+     * @return Posición de la entrada, para getSize, getModified y getHash, o -1
+     *         si la ruta no está.
+     */
+    public int find(String path) {
+        if (slots == 0) {
+            return -1;
+        }
+        byte[] wanted = path.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(wanted, 0, wanted.length);
+        for (int i = hash & (slots - 1);; i = (i + 1) & (slots - 1)) {
+            int slot = HEADER_BYTES + i * SLOT_BYTES;
+            int entry = data.getInt(slot + 4);
+            if (entry == 0) {
+                return -1;
+            }
+            if (data.getInt(slot) == hash && pathEquals(entry, wanted)) {
+                return entry;
+            }
+        }
+    }
+
+    /**
+     * @param entry Posición devuelta por find.
+     * @return Tamaño en bytes registrado.
+     */
+    public long getSize(int entry) {
+        return data.getLong(entry);
+    }
+
+    /**
+     * @param entry Posición devuelta por find.
+     * @return Fecha de modificación registrada, en milisegundos desde 1970, o
+     *         DirectoryListing.UNKNOWN.
+     */
+    public long getModified(int entry) {
+        return data.getLong(entry + 8);
+    }
+
+    /**
+     * @param entry Posición devuelta por find.
+     * @return Resumen registrado o null si no se guardó.
+     */
+    public byte[] getHash(int entry) {
+        int length = data.get(entry + 16) & 0xFF;
+        if (length == 0) {
+            return null;
+        }
+        byte[] hash = new byte[length];
+        data.get(entry + 17, hash);
+        return hash;
+    }
+
+    /**
+     * Indica si un fichero remoto sigue igual que en la última sincronización:
+     * mismo tamaño y misma fecha. Si el listado no da fechas, solo se compara
+     * el tamaño.
+     *
+     * @param path     Ruta remota absoluta.
+     * @param size     Tamaño actual.
+     * @param modified Fecha actual o DirectoryListing.UNKNOWN.
+     * @return true si está en el índice sin cambios.
+     */
+    public boolean isUnchanged(String path, long size, long modified) {
+        int entry = find(path);
+        return entry >= 0 && isUnchanged(entry, size, modified);
+    }
+
+    /**
+     * Indica si la entrada indicada tiene el tamaño y la fecha dados.
+     *
+     * @param entry    Posición devuelta por find.
+     * @param size     Tamaño actual.
+     * @param modified Fecha actual o DirectoryListing.UNKNOWN.
+     * @return true si el fichero no ha cambiado.
+     */
+    public boolean isUnchanged(int entry, long size, long modified) {
+        return getSize(entry) == size && getModified(entry) == modified;
+    }
+
+    private boolean pathEquals(int entry, byte[] wanted) {
+        int pathAt = entry + 17 + (data.get(entry + 16) & 0xFF);
+        int length = data.getShort(pathAt) & 0xFFFF;
+        if (length != wanted.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (data.get(pathAt + 2 + i) != wanted[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hash FNV-1a de 32 bits de los bytes de una ruta.
+     */
+    private static int hash(byte[] bytes, int offset, int length) {
+        int hash = 0x811C9DC5;
+        for (int i = offset; i < offset + length; i++) {
+            hash = (hash ^ (bytes[i] & 0xFF)) * 0x01000193;
+        }
+        return hash;
+    }
+
+    /**
+     * La clase Writer reúne las entradas de una sincronización y las escribe
+     * como un índice nuevo. Admite llamadas a add desde varios hilos.
+     */
+    public static class Writer {
+
+        private int count;
+        private byte[] paths = new byte[4096];
+        private int pathsLength;
+        private int[] pathOffsets = new int[64];
+        private long[] sizes = new long[64];
+        private long[] modified = new long[64];
+        private byte[][] hashes = new byte[64][];
+
+        /**
+         * Añade una entrada.
+         *
+         * @param path     Ruta remota absoluta.
+         * @param size     Tamaño en bytes.
+         * @param modified Fecha de modificación o DirectoryListing.UNKNOWN.
+         * @param hash     Resumen del contenido o null.
+         */
+        public synchronized void add(String path, long size, long modified, byte[] hash) {
+            byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > 0xFFFF) {
+                throw new IllegalArgumentException("Ruta demasiado larga para el índice: " + path);
+            }
+            if (count == sizes.length) {
+                int capacity = count * 2;
+                pathOffsets = Arrays.copyOf(pathOffsets, capacity + 1);
+                sizes = Arrays.copyOf(sizes, capacity);
+                this.modified = Arrays.copyOf(this.modified, capacity);
+                hashes = Arrays.copyOf(hashes, capacity);
+            }
+            if (pathsLength + bytes.length > paths.length) {
+                paths = Arrays.copyOf(paths, Math.max(paths.length * 2, pathsLength + bytes.length));
+            }
+            System.arraycopy(bytes, 0, paths, pathsLength, bytes.length);
+            pathOffsets[count] = pathsLength;
+            pathsLength += bytes.length;
+            sizes[count] = size;
+            this.modified[count] = modified;
+            hashes[count] = hash != null && hash.length > 0 && hash.length < 256 ? hash : null;
+            count++;
+        }
+
+        /**
+         * Copia en este índice una entrada de otro, para conservar los ficheros
+         * que no han cambiado.
+         *
+         * @param manifest Índice anterior.
+         * @param entry    Posición devuelta por find.
+         * @param path     Ruta de la entrada.
+         */
+        public void copy(SyncManifest manifest, int entry, String path) {
+            add(path, manifest.getSize(entry), manifest.getModified(entry), manifest.getHash(entry));
+        }
+
+        /**
+         * @return Número de entradas añadidas.
+         */
+        public synchronized int size() {
+            return count;
+        }
+
+        /**
+         * Escribe el índice en un fichero temporal, lo sincroniza con disco y lo
+         * mueve sobre el destino, para no dejar nunca un índice a medias.
+         *
+         * @param file Fichero del índice.
+         * @throws IOException Si ocurre un error al escribir.
+         */
+        public synchronized void write(Path file) throws IOException {
+            // Tabla con una ocupación máxima del 75%.
+            int slots = Integer.highestOneBit((int) Math.max(1, count * 4L / 3)) << 1;
+            long tableEnd = HEADER_BYTES + (long) slots * SLOT_BYTES;
+            long[] entryOffsets = new long[count];
+            long position = tableEnd;
+            for (int i = 0; i < count; i++) {
+                entryOffsets[i] = position;
+                position += 17 + (hashes[i] != null ? hashes[i].length : 0) + 2 + pathLength(i);
+            }
+            if (position > Integer.MAX_VALUE) {
+                throw new IOException("Demasiadas entradas para un índice de sincronización");
+            }
+            int[] slotHashes = new int[slots];
+            int[] slotEntries = new int[slots];
+            for (int i = 0; i < count; i++) {
+                int hash = hash(paths, pathOffsets[i], pathLength(i));
+                int slot = hash & (slots - 1);
+                while (slotEntries[slot] != 0) {
+                    slot = (slot + 1) & (slots - 1);
+                }
+                slotHashes[slot] = hash;
+                slotEntries[slot] = (int) entryOffsets[i];
+            }
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(count);
+                out.writeInt(slots);
+                for (int i = 0; i < slots; i++) {
+                    out.writeInt(slotHashes[i]);
+                    out.writeInt(slotEntries[i]);
+                }
+                for (int i = 0; i < count; i++) {
+                    out.writeLong(sizes[i]);
+                    out.writeLong(modified[i]);
+                    byte[] hash = hashes[i];
+                    out.writeByte(hash != null ? hash.length : 0);
+                    if (hash != null) {
+                        out.write(hash);
+                    }
+                    out.writeShort(pathLength(i));
+                    out.write(paths, pathOffsets[i], pathLength(i));
+                }
+                out.flush();
+                channel.force(true);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        private int pathLength(int index) {
+            return (index + 1 < count ? pathOffsets[index + 1] : pathsLength) - pathOffsets[index];
+        }
+    }
+}
@@ -0,0 +1,228 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * La clase TrafficShaper limita el ancho de banda de las transferencias con un
+ * cubo de fichas global y otro por servidor, para que una réplica masiva no
+ * sature el enlace compartido. Cada transferencia pertenece a una clase de
+ * prioridad (INTERACTIVE, NORMAL o BULK) y las de más prioridad pasan por
+ * delante de las de menos cuando el enlace está ocupado.
+ * Cada cubo se lleva con un único AtomicLong, la hora teórica a la que
+ * quedaría libre el enlace (algoritmo GCRA): cada bloque leído la adelanta
+ * según su tamaño con un compareAndSet, sin bloqueos, y si queda por delante
+ * del reloj más de lo que tolera su clase, el hilo duerme la diferencia. Las
+ * clases de más prioridad toleran más adelanto, así que cuando las de menos
+ * ya tienen que esperar ellas aún pasan; mientras haya tráfico prioritario, el
+ * de menos prioridad espera.
+ * Para cada clase se mide el ritmo de los últimos cuatro segundos.
+ *
+ * @author RoberRey
+ */
+public class TrafficShaper {
+
+    /** Listados y transferencias pequeñas que espera un usuario. */
+    public static final int INTERACTIVE = 0;
+    /** Transferencias normales. */
+    public static final int NORMAL = 1;
+    /** Réplicas y descargas masivas. */
+    public static final int BULK = 2;
+
+    private static final String[] CLASS_NAMES = { "interactiva", "normal", "masiva" };
+    // Adelanto tolerado por clase, en milisegundos de transferencia al ritmo del cubo.
+    private static final long[] TOLERANCE_MILLIS = { 200, 100, 25 };
+    private static final int METER_SECONDS = 4;
+
+    private final Bucket global;
+    private final long hostBytesPerSecond;
+    private final Map<String, Bucket> hosts = new ConcurrentHashMap<>();
+    private final RateMeter[] meters = { new RateMeter(), new RateMeter(), new RateMeter() };
+
+    /**
+     * Crea una instancia de TrafficShaper.
+     *
+     * @param globalBytesPerSecond Límite de todas las transferencias juntas, o 0
+     *                             para no limitarlas.
+     * @param hostBytesPerSecond   Límite por servidor, o 0 para no limitarlo.
+     */
+    public TrafficShaper(long globalBytesPerSecond, long hostBytesPerSecond) {
+        this.global = globalBytesPerSecond > 0 ? new Bucket(globalBytesPerSecond) : null;
+        this.hostBytesPerSecond = hostBytesPerSecond;
+    }
+
+    /**
+     * Fija un límite propio para un servidor, distinto del común.
+     *
+     * @param host           Dirección del servidor.
+     * @param bytesPerSecond Límite en bytes por segundo.
+     */
+    public void setHostLimit(String host, long bytesPerSecond) {
+        hosts.put(host, new Bucket(bytesPerSecond));
+    }
+
+    /**
+     * Devuelve el flujo con el que una transferencia consume ancho de banda.
+     *
+     * @param host     Dirección del servidor.
+     * @param priority INTERACTIVE, NORMAL o BULK.
+     * @return Flujo de la transferencia.
+     */
+    public Flow flow(String host, int priority) {
+        int index = Math.max(INTERACTIVE, Math.min(BULK, priority));
+        Bucket hostBucket = hostBytesPerSecond > 0 || hosts.containsKey(host)
+                ? hosts.computeIfAbsent(host, key -> new Bucket(hostBytesPerSecond)) : null;
+        return new Flow(hostBucket, index);
+    }
+
+    /**
+     * Ritmo medio de una clase en los últimos cuatro segundos.
+     *
+     * @param priority INTERACTIVE, NORMAL o BULK.
+     * @return Bytes por segundo.
+     * @throws IllegalArgumentException Si la clase de prioridad no existe.
+     */
+    public double getRate(int priority) {
+        if (priority < INTERACTIVE || priority > BULK) {
+            throw new IllegalArgumentException("Clase de prioridad desconocida: " + priority);
+        }
+        return meters[priority].getRate();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (int i = INTERACTIVE; i <= BULK; i++) {
+            text.append(i == INTERACTIVE ? "" : ", ").append(CLASS_NAMES[i])
+                    .append(String.format(" %.1f KB/s", getRate(i) / 1024));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Consumo de ancho de banda de una transferencia: cada bloque pasa por el
+     * cubo global y por el de su servidor.
+     */
+    public final class Flow {
+        private final Bucket host;
+        private final int priority;
+
+        private Flow(Bucket host, int priority) {
+            this.host = host;
+            this.priority = priority;
+        }
+
+        /**
+         * Descuenta los bytes transferidos y, si se va por delante del límite,
+         * espera lo necesario.
+         *
+         * @param bytes Bytes transferidos en el último bloque.
+         * @throws InterruptedException Si se interrumpe la espera.
+         */
+        public void acquire(long bytes) throws InterruptedException {
+            if (bytes <= 0) {
+                return;
+            }
+            meters[priority].add(bytes);
+            long now = System.nanoTime();
+            long wait = 0;
+            if (global != null) {
+                wait = global.reserve(bytes, priority, now);
+            }
+            if (host != null) {
+                wait = Math.max(wait, host.reserve(bytes, priority, now));
+            }
+            long deadline = now + wait;
+            while (wait > 0) {
+                LockSupport.parkNanos(wait);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                wait = deadline - System.nanoTime();
+            }
+        }
+
+        /**
+         * @return Tamaño de bloque recomendado, para que cada espera sea corta:
+         *         unos 20 ms al ritmo del cubo más restrictivo, entre 4 KB y
+         *         1 MB.
+         */
+        public int getChunkSize() {
+            long rate = Long.MAX_VALUE;
+            if (global != null) {
+                rate = global.bytesPerSecond;
+            }
+            if (host != null) {
+                rate = Math.min(rate, host.bytesPerSecond);
+            }
+            return (int) Math.max(4096, Math.min(DirectBufferPool.LARGE, rate / 50));
+        }
+    }
+
+    /**
+     * Cubo de fichas llevado como hora teórica de fin (GCRA).
+     */
+    private static final class Bucket {
+        private final long bytesPerSecond;
+        private final AtomicLong theoreticalArrival = new AtomicLong(System.nanoTime());
+
+        private Bucket(long bytesPerSecond) {
+            this.bytesPerSecond = Math.max(1, bytesPerSecond);
+        }
+
+        /**
+         * Reserva los bytes en el cubo.
+         *
+         * @return Nanosegundos que hay que esperar para no superar el límite.
+         */
+        private long reserve(long bytes, int priority, long now) {
+            long cost = (long) (bytes * 1_000_000_000.0 / bytesPerSecond);
+            long tolerance = TOLERANCE_MILLIS[priority] * 1_000_000;
+            while (true) {
+                long current = theoreticalArrival.get();
+                long next = Math.max(current, now) + cost;
+                if (theoreticalArrival.compareAndSet(current, next)) {
+                    return Math.max(0, next - now - tolerance);
+                }
+            }
+        }
+    }
+
+    /**
+     * Contador de bytes por segundo en una ventana circular de segundos.
+     */
+    private static final class RateMeter {
+        private static final int SLOTS = 8;
+        private final AtomicLongArray bytes = new AtomicLongArray(SLOTS);
+        private final AtomicLongArray seconds = new AtomicLongArray(SLOTS);
+
+        private void add(long count) {
+            long second = System.nanoTime() / 1_000_000_000L;
+            int slot = (int) (second & (SLOTS - 1));
+            long stamp = seconds.get(slot);
+            if (stamp != second && seconds.compareAndSet(slot, stamp, second)) {
+                bytes.set(slot, 0);
+            }
+            bytes.addAndGet(slot, count);
+        }
+
+        /**
+         * @return Bytes por segundo en los últimos segundos completos más lo que
+         *         va del actual.
+         */
+        private double getRate() {
+            long now = System.nanoTime();
+            long second = now / 1_000_000_000L;
+            long total = 0;
+            for (long s = second - (METER_SECONDS - 1); s <= second; s++) {
+                int slot = (int) (s & (SLOTS - 1));
+                if (seconds.get(slot) == s) {
+                    total += bytes.get(slot);
+                }
+            }
+            double elapsed = METER_SECONDS - 1 + (now % 1_000_000_000L) / 1e9;
+            return total / elapsed;
+        }
+    }
+}
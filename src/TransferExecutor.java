@@ -0,0 +1,89 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * La interfaz TransferExecutor define dónde se ejecutan las tareas de un
+ * ClientFtpProtocolService: el hilo que escucha el canal de control y cada
+ * transferencia del canal de datos. La escucha dura lo que la sesión, así que
+ * siempre va en un hilo virtual propio; las transferencias van por defecto en
+ * hilos virtuales, que apenas ocupan memoria mientras están bloqueados en el
+ * socket y permiten mantener miles de sesiones en la misma JVM, o en un pool
+ * acotado de hilos de plataforma.
+ *
+ * @author RoberRey
+ */
+public interface TransferExecutor {
+
+    /**
+     * Ejecuta una tarea de forma asíncrona.
+     *
+     * @param task Tarea a ejecutar.
+     * @return Future que se completa al terminar la tarea.
+     */
+    Future<?> submit(Runnable task);
+
+    /**
+     * Ejecuta el bucle de escucha del canal de control de una sesión, que no
+     * termina hasta que se cierra. Por defecto se lanza en un hilo virtual
+     * aparte, de modo que un ejecutor acotado nunca se llena de escuchas y las
+     * transferencias siempre pueden avanzar.
+     *
+     * @param listener Bucle de escucha de la sesión.
+     */
+    default void listen(Runnable listener) {
+        Thread.ofVirtual().name("ftp-control").start(listener);
+    }
+
+    /**
+     * Devuelve el ejecutor compartido que crea un hilo virtual por tarea.
+     *
+     * @return Ejecutor de hilos virtuales.
+     */
+    static TransferExecutor virtualThreads() {
+        return VirtualThreads.INSTANCE;
+    }
+
+    /**
+     * Crea un ejecutor con un número máximo de hilos de plataforma para las
+     * transferencias. Las que no caben esperan en cola hasta que termina otra.
+     * Las escuchas del canal de control no ocupan estos hilos (ver listen), así
+     * que cualquier maxThreads de al menos 1 avanza.
+     *
+     * @param maxThreads Número máximo de hilos.
+     * @return Ejecutor acotado de hilos de plataforma.
+     * @throws IllegalArgumentException Si maxThreads es menor que 1.
+     */
+    static TransferExecutor boundedPool(int maxThreads) {
+        if (maxThreads < 1) {
+            throw new IllegalArgumentException("Hace falta al menos un hilo para las transferencias");
+        }
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = task -> {
+            Thread thread = new Thread(task, "ftp-pool-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads, maxThreads,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), factory);
+        pool.allowCoreThreadTimeOut(true);
+        return pool::submit;
+    }
+
+    /**
+     * Contenedor del ejecutor de hilos virtuales, creado solo cuando se usa.
+     */
+    final class VirtualThreads {
+        private static final ExecutorService EXECUTOR = Executors.newThreadPerTaskExecutor(
+                Thread.ofVirtual().name("ftp-virtual-", 0).factory());
+        private static final TransferExecutor INSTANCE = EXECUTOR::submit;
+
+        private VirtualThreads() {
+        }
+    }
+}
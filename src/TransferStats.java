@@ -0,0 +1,175 @@
+/**
+ * La clase TransferStats resume el resultado de una transferencia por el canal
+ * de datos: número de bytes copiados y tiempo empleado, a partir de los cuales
+ * se calcula el rendimiento obtenido. Si la transferencia ajustó el tamaño de
+ * sus lecturas, se guarda también el tamaño con el que terminó, y en las
+ * descargas el tiempo que tardó en llegar el primer byte y, si se pidió, el
+ * resumen de los datos recibidos. Si la descarga llegó comprimida (MODE Z),
+ * se guardan también los bytes que ocupó en la red.
+ *
+ * @author RoberRey
+ */
+public class TransferStats {
+
+    private final long bytes;
+    private final long nanos;
+    private final int bufferSize;
+    private final long firstByteNanos;
+    private final String digestAlgorithm;
+    private final byte[] digest;
+    private final long compressedBytes;
+
+    /**
+     * Crea una instancia de TransferStats. El resto de datos se añade con los
+     * métodos with, que devuelven una copia.
+     *
+     * @param bytes Número de bytes transferidos.
+     * @param nanos Duración de la transferencia en nanosegundos.
+     */
+    public TransferStats(long bytes, long nanos) {
+        this(bytes, nanos, 0, -1, null, null, -1);
+    }
+
+    private TransferStats(long bytes, long nanos, int bufferSize, long firstByteNanos,
+            String digestAlgorithm, byte[] digest, long compressedBytes) {
+        this.bytes = bytes;
+        this.nanos = nanos;
+        this.bufferSize = bufferSize;
+        this.firstByteNanos = firstByteNanos;
+        this.digestAlgorithm = digestAlgorithm;
+        this.digest = digest;
+        this.compressedBytes = compressedBytes;
+    }
+
+    /**
+     * @param bufferSize Tamaño de lectura con el que terminó la transferencia o
+     *                   0 si no se ajustó.
+     * @return Copia con el tamaño de lectura indicado.
+     */
+    public TransferStats withBufferSize(int bufferSize) {
+        return new TransferStats(bytes, nanos, bufferSize, firstByteNanos, digestAlgorithm, digest,
+                compressedBytes);
+    }
+
+    /**
+     * @param firstByteNanos Tiempo hasta recibir el primer byte en nanosegundos,
+     *                       o -1 si no se midió o no llegó ninguno.
+     * @return Copia con el tiempo hasta el primer byte indicado.
+     */
+    public TransferStats withFirstByteNanos(long firstByteNanos) {
+        return new TransferStats(bytes, nanos, bufferSize, firstByteNanos, digestAlgorithm, digest,
+                compressedBytes);
+    }
+
+    /**
+     * @param algorithm Algoritmo del resumen, o null si no se calculó.
+     * @param digest    Resumen de los datos, o null si no se calculó.
+     * @return Copia con el resumen de los datos descargados.
+     */
+    public TransferStats withDigest(String algorithm, byte[] digest) {
+        return new TransferStats(bytes, nanos, bufferSize, firstByteNanos, algorithm, digest,
+                compressedBytes);
+    }
+
+    /**
+     * @param compressedBytes Bytes recibidos por la red en MODE Z, o -1 si la
+     *                        transferencia no iba comprimida; los de
+     *                        getBytes() son ya descomprimidos.
+     * @return Copia con los bytes comprimidos indicados.
+     */
+    public TransferStats withCompressedBytes(long compressedBytes) {
+        return new TransferStats(bytes, nanos, bufferSize, firstByteNanos, digestAlgorithm, digest,
+                compressedBytes);
+    }
+
+    /**
+     * @return Número de bytes transferidos.
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return Duración de la transferencia en nanosegundos.
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * @return Tamaño de lectura con el que terminó la transferencia o 0 si no se
+     *         ajustó.
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return Tiempo hasta recibir el primer byte en nanosegundos, o -1 si no se
+     *         midió o no llegó ninguno.
+     */
+    public long getFirstByteNanos() {
+        return firstByteNanos;
+    }
+
+    /**
+     * @return Algoritmo del resumen de los datos, o null si no se calculó.
+     */
+    public String getDigestAlgorithm() {
+        return digestAlgorithm;
+    }
+
+    /**
+     * @return Resumen de los datos descargados, o null si no se calculó.
+     */
+    public byte[] getDigest() {
+        return digest != null ? digest.clone() : null;
+    }
+
+    /**
+     * @return Resumen de los datos en hexadecimal, o null si no se calculó.
+     */
+    public String getDigestHex() {
+        return digest != null ? StreamingDigest.toHex(digest) : null;
+    }
+
+    /**
+     * @return Bytes recibidos por la red en MODE Z, o -1 si la transferencia no
+     *         iba comprimida.
+     */
+    public long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    /**
+     * @return Bytes que la compresión ha ahorrado en la red, o 0 si la
+     *         transferencia no iba comprimida.
+     */
+    public long getBytesSaved() {
+        return compressedBytes < 0 ? 0 : bytes - compressedBytes;
+    }
+
+    /**
+     * @return Rendimiento de la transferencia en bytes por segundo.
+     */
+    public double getBytesPerSecond() {
+        if (nanos <= 0) {
+            return 0;
+        }
+        return bytes * 1_000_000_000.0 / nanos;
+    }
+
+    @Override
+    public String toString() {
+        String text = String.format("%d bytes en %d ms (%.1f KB/s)",
+                bytes, nanos / 1_000_000, getBytesPerSecond() / 1024);
+        if (bufferSize > 0) {
+            text += String.format(", lecturas de %d KB", bufferSize / 1024);
+        }
+        if (compressedBytes >= 0) {
+            text += String.format(", %d bytes comprimidos (%.1f:1)",
+                    compressedBytes, compressedBytes > 0 ? (double) bytes / compressedBytes : 1.0);
+        }
+        return digest != null ? text + ", " + digestAlgorithm + " " + getDigestHex() : text;
+    }
+}